@@ -0,0 +1,212 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+
+/**
+ * One of the 8 symmetries of the board (rotations and reflections), optionally followed by a reversal of
+ * the colors. There are 16 instances, identified by their index : (symmetry * 2 + (reversed colors ? 1 : 0)).
+ * The symmetries only map coordinates, so they can be applied to boards without copying them
+ * (see {@link TransformedBoard}).
+ */
+public final class BoardSymmetry {
+    public static final int COUNT = 16;
+
+    private static final BoardSymmetry[] _symmetries = new BoardSymmetry[COUNT];
+    private static final int[][] _products = new int[8][8];
+
+    static {
+        for (int i = 0; i < COUNT; i++)
+            _symmetries[i] = new BoardSymmetry(i >> 1, (i & 1) != 0);
+
+        // A corner and the middle of a side of a 3x3 board are enough to identify a symmetry
+        for (int first = 0; first < 8; first++) {
+            for (int second = 0; second < 8; second++) {
+                for (int result = 0; result < 8; result++) {
+                    if (_apply(second, transform(first, 0, 0, 3)) == transform(result, 0, 0, 3)
+                            && _apply(second, transform(first, 1, 0, 3)) == transform(result, 1, 0, 3)) {
+                        _products[first][second] = result;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public static final BoardSymmetry IDENTITY = _symmetries[0];
+    public static final BoardSymmetry ROTATE_CCW = _symmetries[3 * 2];
+    public static final BoardSymmetry REVERSE_COLORS = _symmetries[1];
+
+    private final int _symmetry;
+    private final boolean _reversedColors;
+
+
+    private BoardSymmetry(int symmetry, boolean reversedColors) {
+        _symmetry = symmetry;
+        _reversedColors = reversedColors;
+    }
+
+    /**
+     * Returns the symmetry with the specified index (between 0 and {@link #COUNT} - 1).
+     */
+    public static BoardSymmetry get(int index) {
+        return _symmetries[index];
+    }
+
+    /**
+     * @param symmetry        One of the 8 symmetries of the board (0 is the identity).
+     * @param reversedColors True to also reverse the colors.
+     */
+    public static BoardSymmetry get(int symmetry, boolean reversedColors) {
+        return _symmetries[symmetry * 2 + (reversedColors ? 1 : 0)];
+    }
+
+
+    public int getIndex() {
+        return _symmetry * 2 + (_reversedColors ? 1 : 0);
+    }
+
+    /**
+     * Returns the symmetry of the board (between 0 and 7), without the color reversal.
+     */
+    public int getBoardSymmetry() {
+        return _symmetry;
+    }
+
+    public boolean isColorReversed() {
+        return _reversedColors;
+    }
+
+    /**
+     * Returns the symmetry which cancels this one.
+     */
+    public BoardSymmetry inverse() {
+        return get(inverse(_symmetry), _reversedColors);
+    }
+
+    /**
+     * Returns the symmetry equivalent to this one followed by the specified one.
+     */
+    public BoardSymmetry then(BoardSymmetry other) {
+        return get(_products[_symmetry][other._symmetry], _reversedColors != other._reversedColors);
+    }
+
+    /**
+     * Returns the X coordinate of the specified intersection after this symmetry.
+     */
+    public int getX(int x, int y, int size) {
+        return transform(_symmetry, x, y, size) % size;
+    }
+
+    /**
+     * Returns the Y coordinate of the specified intersection after this symmetry.
+     */
+    public int getY(int x, int y, int size) {
+        return transform(_symmetry, x, y, size) / size;
+    }
+
+    /**
+     * Returns the intersection (y * size + x) of the specified intersection after this symmetry.
+     */
+    public int getPoint(int x, int y, int size) {
+        return transform(_symmetry, x, y, size);
+    }
+
+    /**
+     * Returns the specified color (one of the GoBoard constants) after this symmetry.
+     */
+    public byte getColor(byte color) {
+        if (!_reversedColors)
+            return color;
+        switch (color) {
+            case GoBoard.BLACK: return GoBoard.WHITE;
+            case GoBoard.WHITE: return GoBoard.BLACK;
+            case GoBoard.BLACK_TERRITORY: return GoBoard.WHITE_TERRITORY;
+            case GoBoard.WHITE_TERRITORY: return GoBoard.BLACK_TERRITORY;
+            case GoBoard.DEAD_BLACK_STONE: return GoBoard.DEAD_WHITE_STONE;
+            case GoBoard.DEAD_WHITE_STONE: return GoBoard.DEAD_BLACK_STONE;
+            default: return color;
+        }
+    }
+
+    /**
+     * Returns the specified mark type (one of the BoardMark constants) after this symmetry.
+     */
+    public byte getMarkType(byte type) {
+        if (!_reversedColors)
+            return type;
+        switch (type) {
+            case BoardMark.MARK_BLACK_TERRITORY: return BoardMark.MARK_WHITE_TERRITORY;
+            case BoardMark.MARK_WHITE_TERRITORY: return BoardMark.MARK_BLACK_TERRITORY;
+            case BoardMark.MARK_BLACK_TRANSPARENT: return BoardMark.MARK_WHITE_TRANSPARENT;
+            case BoardMark.MARK_WHITE_TRANSPARENT: return BoardMark.MARK_BLACK_TRANSPARENT;
+            case BoardMark.MARK_ADD_BLACK: return BoardMark.MARK_ADD_WHITE;
+            case BoardMark.MARK_ADD_WHITE: return BoardMark.MARK_ADD_BLACK;
+            default: return type;
+        }
+    }
+
+    /**
+     * Returns a copy of the specified mark after this symmetry.
+     */
+    public BoardMark getMark(BoardMark mark, int size) {
+        int point = transform(_symmetry, mark.x, mark.y, size);
+        if (mark instanceof BoardLabelMark)
+            return new BoardLabelMark(point % size, point / size, mark.getLabel());
+        return new BoardMark(point % size, point / size, getMarkType(mark.type));
+    }
+
+    @Override
+    public String toString() {
+        return "BoardSymmetry(" + _symmetry + (_reversedColors ? ", reversed colors)" : ")");
+    }
+
+
+    /**
+     * Returns the point (y * size + x) of the specified intersection after one of the 8 symmetries of the board.
+     */
+    static int transform(int symmetry, int x, int y, int size) {
+        int last = size - 1;
+        switch (symmetry) {
+            case 1: return x * size + (last - y);
+            case 2: return (last - y) * size + (last - x);
+            case 3: return (last - x) * size + y;
+            case 4: return y * size + (last - x);
+            case 5: return (last - y) * size + x;
+            case 6: return x * size + y;
+            case 7: return (last - x) * size + (last - y);
+            default: return y * size + x;
+        }
+    }
+
+    /**
+     * Returns the symmetry of the board which cancels the specified one.
+     */
+    static int inverse(int symmetry) {
+        if (symmetry == 1)
+            return 3;
+        if (symmetry == 3)
+            return 1;
+        return symmetry;
+    }
+
+    private static int _apply(int symmetry, int point) {
+        return transform(symmetry, point % 3, point / 3, 3);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.util.Arrays;
+
+
+/**
+ * Computes canonical forms of boards and game trees : among the symmetries of the board (and optionally
+ * the color reversals), the canonical one is the symmetry giving the smallest hash. Two positions or
+ * trees which only differ by a symmetry have the same canonical hash, and applying their canonical
+ * symmetries gives the same result.
+ */
+public final class CanonicalForm {
+    private CanonicalForm() {
+    }
+
+
+    /**
+     * Returns the symmetry giving the canonical form of the specified board. Only the stones are considered.
+     *
+     * @param foldColors True if the color reversals should also be considered.
+     */
+    public static BoardSymmetry getSymmetry(GoBoard board, boolean foldColors) {
+        return BoardSymmetry.get(_hashBoard(board, foldColors).getCanonicalVariant());
+    }
+
+    /**
+     * Returns the hash of the canonical form of the specified board.
+     */
+    public static long getHash(GoBoard board, boolean foldColors) {
+        return _hashBoard(board, foldColors).getCanonicalHash();
+    }
+
+    /**
+     * Returns a view of the canonical form of the specified board.
+     */
+    public static TransformedBoard getCanonicalBoard(GoBoard board, boolean foldColors) {
+        return new TransformedBoard(board, getSymmetry(board, foldColors));
+    }
+
+    /**
+     * Returns the symmetry giving the canonical form of the specified tree. The moves, the set up
+     * stones and the marks of every node are considered, but the order of the variations is not.
+     */
+    public static BoardSymmetry getSymmetry(GameNode root, int size, boolean foldColors) {
+        return BoardSymmetry.get(_getCanonicalVariant(_hashTree(root, size, foldColors), foldColors));
+    }
+
+    /**
+     * Returns the hash of the canonical form of the specified tree.
+     */
+    public static long getHash(GameNode root, int size, boolean foldColors) {
+        long[] hashes = _hashTree(root, size, foldColors);
+        return hashes[_getCanonicalVariant(hashes, foldColors)];
+    }
+
+    /**
+     * Returns the symmetry giving the canonical form of the whole tree of the specified game.
+     */
+    public static BoardSymmetry getSymmetry(GoGame game, boolean foldColors) {
+        return getSymmetry(game.getBaseNode(), game.info.boardSize, foldColors);
+    }
+
+    /**
+     * Returns the hash of the canonical form of the whole tree of the specified game.
+     */
+    public static long getHash(GoGame game, boolean foldColors) {
+        return getHash(game.getBaseNode(), game.info.boardSize, foldColors);
+    }
+
+
+    private static PositionHash _hashBoard(GoBoard board, boolean foldColors) {
+        PositionHash hash = new PositionHash(board.getSize(), foldColors);
+        byte[] colors = board.getBoardArray();
+        for (int i = 0; i < colors.length; i++)
+            hash.onChange(i, GoBoard.EMPTY, colors[i]);
+        return hash;
+    }
+
+    private static int _getCanonicalVariant(long[] hashes, boolean foldColors) {
+        int step = foldColors ? 1 : 2;
+        int variant = 0;
+        for (int i = step; i < BoardSymmetry.COUNT; i += step) {
+            if (hashes[i] < hashes[variant])
+                variant = i;
+        }
+        return variant;
+    }
+
+    /**
+     * Returns the hash of the tree for each symmetry. The hash of a node combines its content with the sum
+     * of the hashes of its variations, so the variations can be in any order.
+     */
+    private static long[] _hashTree(GameNode root, int size, boolean foldColors) {
+        int step = foldColors ? 1 : 2;
+        long[][] sums = new long[64][BoardSymmetry.COUNT];
+        long[] result = new long[BoardSymmetry.COUNT];
+        int depth = 0;
+
+        GameTreeWalker walker = new GameTreeWalker(root);
+        int event;
+        while ((event = walker.next()) != GameTreeWalker.END) {
+            if (event == GameTreeWalker.ENTER) {
+                if (++depth == sums.length) {
+                    sums = Arrays.copyOf(sums, depth * 2);
+                    for (int i = depth; i < sums.length; i++)
+                        sums[i] = new long[BoardSymmetry.COUNT];
+                }
+                Arrays.fill(sums[depth], 0);
+                continue;
+            }
+
+            GameNode node = walker.getNode();
+            long[] children = sums[depth];
+            long[] parent = (--depth == 0) ? result : sums[depth];
+            for (int variant = 0; variant < BoardSymmetry.COUNT; variant += step) {
+                long content = _hashNode(node, size, variant);
+                parent[variant] += mix(content ^ Long.rotateLeft(mix(children[variant]), 17));
+            }
+        }
+        return result;
+    }
+
+    private static long _hashNode(GameNode node, int size, int variant) {
+        int symmetry = variant >> 1;
+        boolean reversed = (variant & 1) != 0;
+        long hash = 0;
+
+        if (node.color == GoBoard.BLACK || node.color == GoBoard.WHITE)
+            hash += _key(1, _color(node.color, reversed), _point(symmetry, node.x, node.y, size));
+        if (node.setStones != null) {
+            for (LightCoords stone : node.setStones)
+                hash += _key(2, _color(stone.color, reversed), _point(symmetry, stone.x, stone.y, size));
+        }
+        if (node.boardMarks != null) {
+            BoardSymmetry transform = BoardSymmetry.get(variant);
+            for (BoardMark mark : node.boardMarks)
+                hash += _key(3 + transform.getMarkType(mark.type), mark.getLabel(), _point(symmetry, mark.x, mark.y, size));
+        }
+        return hash;
+    }
+
+    private static byte _color(byte color, boolean reversed) {
+        if (reversed && (color == GoBoard.BLACK || color == GoBoard.WHITE))
+            return GoBoard.getOppositeColor(color);
+        return color;
+    }
+
+    /**
+     * Returns the transformed intersection, or -1 for a pass or a coordinate outside of the board.
+     */
+    private static int _point(int symmetry, int x, int y, int size) {
+        if (x < 0 || y < 0 || x >= size || y >= size)
+            return -1;
+        return BoardSymmetry.transform(symmetry, x, y, size);
+    }
+
+    private static long _key(int kind, int value, int point) {
+        return mix(((long) kind << 48) | ((long) (value & 0xFFFF) << 16) | (point + 1));
+    }
+
+    /**
+     * Scrambles the bits of a 64-bit value (finalizer of MurmurHash3).
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
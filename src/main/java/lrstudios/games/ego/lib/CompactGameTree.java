@@ -0,0 +1,603 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Stack;
+
+
+/**
+ * A variation tree stored in parallel primitive arrays, which uses a lot less memory than {@link GameNode}
+ * objects for large collections. Nodes are identified by their index, and linked with first child / next
+ * sibling indexes. Setup stones, marks and comments are kept in shared side tables.
+ * <p/>
+ * Nodes can only be appended, and the side data of a node should be set only once (replacing it leaves
+ * the old data unused in the side tables). Use a {@link Cursor} to browse the tree, or
+ * {@link #toGameNode(int)} to get a regular tree.
+ */
+public final class CompactGameTree {
+    public static final int NO_NODE = -1;
+
+    private static final int _NO_EXTRA = -1;
+    private static final int _STONE_SIZE = 3;
+    private static final int _MARK_SIZE = 5;
+
+    private int _count;
+    private byte[] _x;
+    private byte[] _y;
+    private byte[] _color;
+    private byte[] _value;
+    private byte[] _lastVariation;
+    private int[] _parent;
+    private int[] _firstChild;
+    private int[] _nextSibling;
+    private int[] _extra;
+
+    // Side tables : only the nodes with setup stones, marks or a comment have an extra record
+    private int _extraCount;
+    private int[] _stonesStart;
+    private int[] _stonesCount;
+    private int[] _marksStart;
+    private int[] _marksCount;
+    private int[] _commentStart;
+    private int[] _commentLength;
+
+    private byte[] _stoneData = new byte[48];
+    private int _stoneDataSize;
+    private byte[] _markData = new byte[40];
+    private int _markDataSize;
+    private byte[] _commentData = new byte[256];
+    private int _commentDataSize;
+
+
+    public CompactGameTree() {
+        this(64);
+    }
+
+    /**
+     * Creates an empty tree which can hold the specified number of nodes before growing.
+     */
+    public CompactGameTree(int capacity) {
+        capacity = Math.max(capacity, 1);
+        _x = new byte[capacity];
+        _y = new byte[capacity];
+        _color = new byte[capacity];
+        _value = new byte[capacity];
+        _lastVariation = new byte[capacity];
+        _parent = new int[capacity];
+        _firstChild = new int[capacity];
+        _nextSibling = new int[capacity];
+        _extra = new int[capacity];
+        _growExtras(8);
+    }
+
+
+    /**
+     * Copies the specified tree and all of its variations.
+     */
+    public static CompactGameTree fromGameNode(GameNode baseNode) {
+        CompactGameTree tree = new CompactGameTree();
+        tree._copyNode(baseNode, tree.addNode(NO_NODE, baseNode.x, baseNode.y, baseNode.color));
+
+        // Pre-order traversal : each entry of the state stack contains {next child position, node index, last child index}
+        Stack<GameNode> nodes = new Stack<>();
+        Stack<int[]> states = new Stack<>();
+        nodes.push(baseNode);
+        states.push(new int[]{0, 0, NO_NODE});
+        while (!nodes.empty()) {
+            GameNode node = nodes.peek();
+            node.ensureLoaded();
+            int[] state = states.peek();
+            if (state[0] >= node.nextNodes.size()) {
+                nodes.pop();
+                states.pop();
+                continue;
+            }
+
+            GameNode child = node.nextNodes.get(state[0]++);
+            int index = tree._newNode(state[1], state[2], child.x, child.y, child.color);
+            tree._copyNode(child, index);
+            state[2] = index;
+            nodes.push(child);
+            states.push(new int[]{0, index, NO_NODE});
+        }
+        return tree;
+    }
+
+    private void _copyNode(GameNode node, int index) {
+        _value[index] = node.value;
+        _lastVariation[index] = node.lastVariation;
+        if (node.setStones != null && node.setStones.size() > 0)
+            setStones(index, node.setStones);
+        if (node.boardMarks != null && node.boardMarks.size() > 0)
+            setMarks(index, node.boardMarks);
+        byte[] comment = node.getCommentBytes();
+        if (comment != null && comment.length > 0)
+            setCommentBytes(index, comment);
+    }
+
+    /**
+     * Creates a regular tree from the specified node and all of its variations.
+     * The returned node has no parent.
+     */
+    public GameNode toGameNode(int index) {
+        GameNode root = _createGameNode(index);
+        Stack<GameNode> nodes = new Stack<>();
+        Stack<Integer> indexes = new Stack<>();
+        nodes.push(root);
+        indexes.push(index);
+        while (!nodes.empty()) {
+            GameNode node = nodes.pop();
+            int current = indexes.pop();
+            for (int child = _firstChild[current]; child != NO_NODE; child = _nextSibling[child]) {
+                GameNode childNode = _createGameNode(child);
+                node.forceAddMove(childNode);
+                nodes.push(childNode);
+                indexes.push(child);
+            }
+        }
+        return root;
+    }
+
+    private GameNode _createGameNode(int index) {
+        GameNode node = new GameNode(_x[index], _y[index], _color[index]);
+        node.value = _value[index];
+        node.lastVariation = _lastVariation[index];
+        node.setStones = getStones(index);
+        node.boardMarks = getMarks(index);
+        node.setCommentBytes(getCommentBytes(index));
+        return node;
+    }
+
+
+    /**
+     * Appends a node to the children of the specified parent, and returns its index.
+     * The first node added must be the root, with a parent set to NO_NODE.
+     */
+    public int addNode(int parent, int x, int y, byte color) {
+        if (parent == NO_NODE) {
+            if (_count > 0)
+                throw new IllegalStateException("The tree already has a root node");
+            return _newNode(NO_NODE, NO_NODE, x, y, color);
+        }
+
+        int lastChild = _firstChild[parent];
+        if (lastChild != NO_NODE) {
+            while (_nextSibling[lastChild] != NO_NODE)
+                lastChild = _nextSibling[lastChild];
+        }
+        return _newNode(parent, lastChild, x, y, color);
+    }
+
+    private int _newNode(int parent, int previousSibling, int x, int y, byte color) {
+        if (_count == _x.length)
+            _grow(_count + (_count >> 1) + 1);
+
+        int index = _count++;
+        _x[index] = (byte) x;
+        _y[index] = (byte) y;
+        _color[index] = color;
+        _value[index] = (parent == NO_NODE) ? -1 : _value[parent];
+        _lastVariation[index] = 0;
+        _parent[index] = parent;
+        _firstChild[index] = NO_NODE;
+        _nextSibling[index] = NO_NODE;
+        _extra[index] = _NO_EXTRA;
+
+        if (previousSibling != NO_NODE)
+            _nextSibling[previousSibling] = index;
+        else if (parent != NO_NODE)
+            _firstChild[parent] = index;
+        return index;
+    }
+
+    private void _grow(int capacity) {
+        _x = Arrays.copyOf(_x, capacity);
+        _y = Arrays.copyOf(_y, capacity);
+        _color = Arrays.copyOf(_color, capacity);
+        _value = Arrays.copyOf(_value, capacity);
+        _lastVariation = Arrays.copyOf(_lastVariation, capacity);
+        _parent = Arrays.copyOf(_parent, capacity);
+        _firstChild = Arrays.copyOf(_firstChild, capacity);
+        _nextSibling = Arrays.copyOf(_nextSibling, capacity);
+        _extra = Arrays.copyOf(_extra, capacity);
+    }
+
+    private void _growExtras(int capacity) {
+        if (_stonesStart == null) {
+            _stonesStart = new int[capacity];
+            _stonesCount = new int[capacity];
+            _marksStart = new int[capacity];
+            _marksCount = new int[capacity];
+            _commentStart = new int[capacity];
+            _commentLength = new int[capacity];
+            return;
+        }
+        _stonesStart = Arrays.copyOf(_stonesStart, capacity);
+        _stonesCount = Arrays.copyOf(_stonesCount, capacity);
+        _marksStart = Arrays.copyOf(_marksStart, capacity);
+        _marksCount = Arrays.copyOf(_marksCount, capacity);
+        _commentStart = Arrays.copyOf(_commentStart, capacity);
+        _commentLength = Arrays.copyOf(_commentLength, capacity);
+    }
+
+    private int _getExtra(int index) {
+        int extra = _extra[index];
+        if (extra == _NO_EXTRA) {
+            if (_extraCount == _stonesStart.length)
+                _growExtras(_extraCount * 2);
+            extra = _extraCount++;
+            _stonesCount[extra] = 0;
+            _marksCount[extra] = 0;
+            _commentLength[extra] = 0;
+            _extra[index] = extra;
+        }
+        return extra;
+    }
+
+    private static byte[] _ensureCapacity(byte[] data, int size) {
+        if (size <= data.length)
+            return data;
+        return Arrays.copyOf(data, Math.max(size, data.length * 2));
+    }
+
+    /**
+     * Releases the unused space of the arrays, once the tree is complete.
+     */
+    public void trimToSize() {
+        _grow(Math.max(_count, 1));
+        _growExtras(Math.max(_extraCount, 1));
+        _stoneData = Arrays.copyOf(_stoneData, _stoneDataSize);
+        _markData = Arrays.copyOf(_markData, _markDataSize);
+        _commentData = Arrays.copyOf(_commentData, _commentDataSize);
+    }
+
+
+    /**
+     * Returns the number of nodes of the tree.
+     */
+    public int getNodeCount() {
+        return _count;
+    }
+
+    /**
+     * Returns the index of the root node, or NO_NODE if the tree is empty.
+     */
+    public int getRoot() {
+        return (_count > 0) ? 0 : NO_NODE;
+    }
+
+    public byte getX(int index) {
+        return _x[index];
+    }
+
+    public byte getY(int index) {
+        return _y[index];
+    }
+
+    public byte getColor(int index) {
+        return _color[index];
+    }
+
+    /**
+     * Returns the move value, between 0 (lower) and 100 (better), or -1 if not used.
+     */
+    public byte getValue(int index) {
+        return _value[index];
+    }
+
+    public void setValue(int index, byte value) {
+        _value[index] = value;
+    }
+
+    public byte getLastVariation(int index) {
+        return _lastVariation[index];
+    }
+
+    public void setLastVariation(int index, byte lastVariation) {
+        _lastVariation[index] = lastVariation;
+    }
+
+    public int getParent(int index) {
+        return _parent[index];
+    }
+
+    public int getFirstChild(int index) {
+        return _firstChild[index];
+    }
+
+    public int getNextSibling(int index) {
+        return _nextSibling[index];
+    }
+
+    public int getChildCount(int index) {
+        int count = 0;
+        for (int child = _firstChild[index]; child != NO_NODE; child = _nextSibling[child])
+            count++;
+        return count;
+    }
+
+    /**
+     * Returns the child at the specified position, or NO_NODE if it doesn't exist.
+     */
+    public int getChild(int index, int position) {
+        int child = _firstChild[index];
+        while (child != NO_NODE && position-- > 0)
+            child = _nextSibling[child];
+        return child;
+    }
+
+
+    /**
+     * Sets the stones and empty intersections to be set on the board by the specified node.
+     */
+    public void setStones(int index, List<LightCoords> stones) {
+        int extra = _getExtra(index);
+        int count = stones.size();
+        _stoneData = _ensureCapacity(_stoneData, _stoneDataSize + count * _STONE_SIZE);
+        _stonesStart[extra] = _stoneDataSize;
+        _stonesCount[extra] = count;
+        for (int i = 0; i < count; i++) {
+            LightCoords coords = stones.get(i);
+            _stoneData[_stoneDataSize++] = coords.x;
+            _stoneData[_stoneDataSize++] = coords.y;
+            _stoneData[_stoneDataSize++] = coords.color;
+        }
+    }
+
+    public int getStoneCount(int index) {
+        int extra = _extra[index];
+        return (extra == _NO_EXTRA) ? 0 : _stonesCount[extra];
+    }
+
+    /**
+     * Returns a new list of the stones set by the specified node (or null if there are none).
+     */
+    public ArrayList<LightCoords> getStones(int index) {
+        int count = getStoneCount(index);
+        if (count == 0)
+            return null;
+
+        ArrayList<LightCoords> stones = new ArrayList<>(count);
+        int pos = _stonesStart[_extra[index]];
+        for (int i = 0; i < count; i++, pos += _STONE_SIZE)
+            stones.add(new LightCoords(_stoneData[pos], _stoneData[pos + 1], _stoneData[pos + 2]));
+        return stones;
+    }
+
+    /**
+     * Sets the marks of the specified node.
+     */
+    public void setMarks(int index, List<BoardMark> marks) {
+        int extra = _getExtra(index);
+        int count = marks.size();
+        _markData = _ensureCapacity(_markData, _markDataSize + count * _MARK_SIZE);
+        _marksStart[extra] = _markDataSize;
+        _marksCount[extra] = count;
+        for (int i = 0; i < count; i++) {
+            BoardMark mark = marks.get(i);
+            char label = mark.getLabel();
+            _markData[_markDataSize++] = mark.type;
+            _markData[_markDataSize++] = mark.x;
+            _markData[_markDataSize++] = mark.y;
+            _markData[_markDataSize++] = (byte) (label >> 8);
+            _markData[_markDataSize++] = (byte) label;
+        }
+    }
+
+    public int getMarkCount(int index) {
+        int extra = _extra[index];
+        return (extra == _NO_EXTRA) ? 0 : _marksCount[extra];
+    }
+
+    /**
+     * Returns a new list of the marks of the specified node (or null if there are none).
+     */
+    public ArrayList<BoardMark> getMarks(int index) {
+        int count = getMarkCount(index);
+        if (count == 0)
+            return null;
+
+        ArrayList<BoardMark> marks = new ArrayList<>(count);
+        int pos = _marksStart[_extra[index]];
+        for (int i = 0; i < count; i++, pos += _MARK_SIZE) {
+            byte type = _markData[pos];
+            if (type == BoardMark.MARK_LABEL) {
+                char label = (char) (((_markData[pos + 3] & 0xFF) << 8) | (_markData[pos + 4] & 0xFF));
+                marks.add(new BoardLabelMark(_markData[pos + 1], _markData[pos + 2], label));
+            }
+            else {
+                marks.add(new BoardMark(_markData[pos + 1], _markData[pos + 2], type));
+            }
+        }
+        return marks;
+    }
+
+    /**
+     * Sets the comment of the specified node, encoded in UTF-8.
+     */
+    public void setCommentBytes(int index, byte[] comment) {
+        int extra = _getExtra(index);
+        _commentData = _ensureCapacity(_commentData, _commentDataSize + comment.length);
+        System.arraycopy(comment, 0, _commentData, _commentDataSize, comment.length);
+        _commentStart[extra] = _commentDataSize;
+        _commentLength[extra] = comment.length;
+        _commentDataSize += comment.length;
+    }
+
+    public void setComment(int index, String comment) {
+        try {
+            setCommentBytes(index, comment.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException ignored) {
+        }
+    }
+
+    /**
+     * Returns a copy of the UTF-8 comment of the specified node (or null if there is none).
+     */
+    public byte[] getCommentBytes(int index) {
+        int extra = _extra[index];
+        if (extra == _NO_EXTRA || _commentLength[extra] == 0)
+            return null;
+        int start = _commentStart[extra];
+        return Arrays.copyOfRange(_commentData, start, start + _commentLength[extra]);
+    }
+
+    /**
+     * Gets the comment of the specified node (never null).
+     */
+    public String getComment(int index) {
+        int extra = _extra[index];
+        if (extra == _NO_EXTRA || _commentLength[extra] == 0)
+            return "";
+        try {
+            return new String(_commentData, _commentStart[extra], _commentLength[extra], "UTF-8");
+        }
+        catch (UnsupportedEncodingException ignored) {
+            return "[Error]";
+        }
+    }
+
+
+    /**
+     * Returns a new cursor placed on the root node.
+     */
+    public Cursor newCursor() {
+        return new Cursor(getRoot());
+    }
+
+
+    /**
+     * A cursor which can be used instead of {@link GameNode} without creating an object for each node.
+     */
+    public final class Cursor implements GameTreeCursor {
+        private int _index;
+
+
+        private Cursor(int index) {
+            _index = index;
+        }
+
+
+        public CompactGameTree getTree() {
+            return CompactGameTree.this;
+        }
+
+        @Override
+        public int getIndex() {
+            return _index;
+        }
+
+        @Override
+        public void moveTo(int index) {
+            _index = index;
+        }
+
+        @Override
+        public boolean gotoParent() {
+            return _moveIfValid(_parent[_index]);
+        }
+
+        @Override
+        public boolean gotoFirstChild() {
+            return _moveIfValid(_firstChild[_index]);
+        }
+
+        @Override
+        public boolean gotoNextSibling() {
+            return _moveIfValid(_nextSibling[_index]);
+        }
+
+        @Override
+        public boolean gotoChild(int position) {
+            return _moveIfValid(getChild(_index, position));
+        }
+
+        private boolean _moveIfValid(int index) {
+            if (index == NO_NODE)
+                return false;
+            _index = index;
+            return true;
+        }
+
+        @Override
+        public byte getX() {
+            return _x[_index];
+        }
+
+        @Override
+        public byte getY() {
+            return _y[_index];
+        }
+
+        @Override
+        public byte getColor() {
+            return _color[_index];
+        }
+
+        @Override
+        public byte getValue() {
+            return _value[_index];
+        }
+
+        @Override
+        public byte getLastVariation() {
+            return _lastVariation[_index];
+        }
+
+        @Override
+        public boolean isRoot() {
+            return _parent[_index] == NO_NODE;
+        }
+
+        @Override
+        public boolean hasChildren() {
+            return _firstChild[_index] != NO_NODE;
+        }
+
+        @Override
+        public int getChildCount() {
+            return CompactGameTree.this.getChildCount(_index);
+        }
+
+        @Override
+        public String getComment() {
+            return CompactGameTree.this.getComment(_index);
+        }
+
+        @Override
+        public ArrayList<LightCoords> getStones() {
+            return CompactGameTree.this.getStones(_index);
+        }
+
+        @Override
+        public ArrayList<BoardMark> getMarks() {
+            return CompactGameTree.this.getMarks(_index);
+        }
+
+        @Override
+        public GameNode toGameNode() {
+            return CompactGameTree.this.toGameNode(_index);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Finds the games of a SGF collection which have the same main line, even if one of them is rotated or
+ * mirrored. The main line of each game (set up stones and moves, passes excluded) is reduced to a fingerprint
+ * while it is read by a {@link SgfEventParser}, without building the game trees : the fingerprint is the smallest
+ * hash among the 8 symmetries of the board. The collection is split between several threads.
+ * <p/>
+ * Only the games of each duplicate cluster are fully parsed, to compare their game informations.
+ */
+public final class DuplicateFinder {
+    private static final int _GAMES_PER_TASK = 256;
+    private static final String[] _INFO_PROPERTIES = {
+            "PB", "BR", "PW", "WR", "RE", "DT", "EV", "RO", "KM", "HA", "RU"};
+
+    private int _threadCount = Runtime.getRuntime().availableProcessors();
+    private int _minMoves = 10;
+    private int _gameCount;
+
+
+    /**
+     * Sets the number of threads used to read the collection (default : the number of processors).
+     */
+    public void setThreadCount(int count) {
+        _threadCount = Math.max(1, count);
+    }
+
+    /**
+     * Sets the minimum number of moves of the main line : shorter games are never reported as duplicates,
+     * as they are often empty or unrelated problems (default : 10).
+     */
+    public void setMinMoves(int count) {
+        _minMoves = Math.max(0, count);
+    }
+
+    /**
+     * Returns the number of games read by the last search.
+     */
+    public int getGameCount() {
+        return _gameCount;
+    }
+
+    /**
+     * Searches the duplicates of the specified collection, which is memory-mapped.
+     */
+    public List<Cluster> find(File file) throws IOException {
+        return find(SgfByteParser.mapFile(file));
+    }
+
+    /**
+     * Searches the duplicates of the collection between the position and the limit of the specified buffer.
+     *
+     * @return The clusters of identical games, in the order of their first game.
+     */
+    public List<Cluster> find(ByteBuffer buffer) throws IOException {
+        // Game boundaries
+        int[] starts = new int[1024];
+        int[] ends = new int[1024];
+        int gameCount = 0;
+        SgfGameScanner scanner = new SgfGameScanner(buffer);
+        while (scanner.next()) {
+            if (gameCount == starts.length) {
+                starts = Arrays.copyOf(starts, gameCount * 2);
+                ends = Arrays.copyOf(ends, gameCount * 2);
+            }
+            starts[gameCount] = scanner.getStart();
+            ends[gameCount] = scanner.getEnd();
+            gameCount++;
+        }
+        _gameCount = gameCount;
+
+        long[] fingerprints = new long[gameCount];
+        int[] moveCounts = new int[gameCount];
+        _computeFingerprints(buffer, starts, ends, gameCount, fingerprints, moveCounts);
+
+        // Games with the same fingerprint are linked together
+        LongIntHashMap clusterIndexes = new LongIntHashMap(gameCount);
+        int[] firstGames = new int[Math.max(16, gameCount / 16)];
+        int[] lastGames = new int[firstGames.length];
+        int[] sizes = new int[firstGames.length];
+        int[] nextGames = new int[gameCount];
+        int clusterCount = 0;
+        for (int game = 0; game < gameCount; game++) {
+            if (moveCounts[game] < _minMoves)
+                continue;
+            nextGames[game] = -1;
+            int cluster = clusterIndexes.get(fingerprints[game]);
+            if (cluster == LongIntHashMap.NO_VALUE) {
+                cluster = clusterCount++;
+                if (cluster == firstGames.length) {
+                    firstGames = Arrays.copyOf(firstGames, cluster * 2);
+                    lastGames = Arrays.copyOf(lastGames, cluster * 2);
+                    sizes = Arrays.copyOf(sizes, cluster * 2);
+                }
+                clusterIndexes.put(fingerprints[game], cluster);
+                firstGames[cluster] = game;
+            }
+            else {
+                nextGames[lastGames[cluster]] = game;
+            }
+            lastGames[cluster] = game;
+            sizes[cluster]++;
+        }
+
+        ArrayList<Cluster> clusters = new ArrayList<>();
+        SgfParser.ParseOptions options = new SgfParser.ParseOptions().movesOnly().loadVariationsLazily(true);
+        SgfByteParser parser = new SgfByteParser(options);
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            if (sizes[cluster] < 2)
+                continue;
+            int[] games = new int[sizes[cluster]];
+            GameInfo[] infos = new GameInfo[games.length];
+            int game = firstGames[cluster];
+            for (int i = 0; i < games.length; i++) {
+                games[i] = game;
+                ByteBuffer data = buffer.duplicate();
+                data.limit(ends[game]);
+                data.position(starts[game]);
+                GoGame[] parsed = parser.parse(data);
+                infos[i] = (parsed.length > 0) ? parsed[0].info : new GameInfo();
+                game = nextGames[game];
+            }
+            clusters.add(new Cluster(fingerprints[games[0]], moveCounts[games[0]], games, infos));
+        }
+        return clusters;
+    }
+
+    private void _computeFingerprints(final ByteBuffer buffer, final int[] starts, final int[] ends, int gameCount,
+                                      final long[] fingerprints, final int[] moveCounts) throws IOException {
+        int taskCount = (gameCount + _GAMES_PER_TASK - 1) / _GAMES_PER_TASK;
+        ExecutorService executor = Utils.newDaemonThreadPool(Math.max(1, Math.min(_threadCount, taskCount)), "DuplicateFinder");
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<>(taskCount);
+            for (int task = 0; task < taskCount; task++) {
+                final int first = task * _GAMES_PER_TASK;
+                final int last = Math.min(gameCount, first + _GAMES_PER_TASK) - 1;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ByteBuffer data = buffer.duplicate();
+                        data.limit(ends[last]);
+                        data.position(starts[first]);
+                        Fingerprinter fingerprinter = new Fingerprinter(first, fingerprints, moveCounts);
+                        new SgfEventParser(fingerprinter).parse(data);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results)
+                result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The search has been interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException("The search failed", cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Games having the same main line.
+     */
+    public static final class Cluster {
+        public final long fingerprint;
+        public final int moveCount;
+        /**
+         * The indexes of the games in the collection, in increasing order.
+         */
+        public final int[] games;
+        public final GameInfo[] infos;
+        /**
+         * The game informations which are not identical in all the games.
+         */
+        public final List<Difference> differences;
+
+        Cluster(long fingerprint, int moveCount, int[] games, GameInfo[] infos) {
+            this.fingerprint = fingerprint;
+            this.moveCount = moveCount;
+            this.games = games;
+            this.infos = infos;
+
+            differences = new ArrayList<>();
+            for (String property : _INFO_PROPERTIES) {
+                String[] values = new String[infos.length];
+                boolean different = false;
+                for (int i = 0; i < infos.length; i++) {
+                    values[i] = _getInfo(infos[i], property);
+                    different |= !values[i].equals(values[0]);
+                }
+                if (different)
+                    differences.add(new Difference(property, values));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Cluster" + Arrays.toString(games) + " : " + moveCount + " moves, " + differences;
+        }
+    }
+
+    /**
+     * A game information (identified by its SGF property) which differs between the games of a cluster.
+     */
+    public static final class Difference {
+        public final String property;
+        /**
+         * The value for each game of the cluster (empty if the game has none).
+         */
+        public final String[] values;
+
+        Difference(String property, String[] values) {
+            this.property = property;
+            this.values = values;
+        }
+
+        @Override
+        public String toString() {
+            return property + Arrays.toString(values);
+        }
+    }
+
+    private static String _getInfo(GameInfo info, String property) {
+        String value;
+        switch (property) {
+            case "PB": value = info.blackName; break;
+            case "BR": value = info.blackRank; break;
+            case "PW": value = info.whiteName; break;
+            case "WR": value = info.whiteRank; break;
+            case "RE": value = (info.result == null) ? null : info.result.toString(); break;
+            case "DT": value = info.gameDate; break;
+            case "EV": value = info.eventName; break;
+            case "RO": value = info.round; break;
+            case "KM": value = Double.toString(info.komi); break;
+            case "HA": value = Integer.toString(info.handicap); break;
+            default: value = info.rules; break;
+        }
+        return (value == null) ? "" : value;
+    }
+
+
+    /**
+     * Records the set up stones and moves of the main line of each game, and computes the fingerprint
+     * when the game ends (the board size is only known at this point).
+     */
+    private static final class Fingerprinter implements SgfEventParser.Handler {
+        private static final int _MOVE = 1;
+        private static final int _SETUP = 2;
+
+        private final int _firstGame;
+        private final long[] _fingerprints;
+        private final int[] _moveCounts;
+
+        private int[] _nodes = new int[512];
+        private int[] _values = new int[512];
+        private int _count;
+        private int _nodeIndex;
+        private int _size;
+        private int _moveCount;
+        private int _depth;
+        private int _mainDepth;
+        private boolean _mainEnded;
+        private boolean _inMainLine;
+
+
+        public Fingerprinter(int firstGame, long[] fingerprints, int[] moveCounts) {
+            _firstGame = firstGame;
+            _fingerprints = fingerprints;
+            _moveCounts = moveCounts;
+        }
+
+        @Override
+        public void startGame(int index) {
+            _count = 0;
+            _nodeIndex = 0;
+            _size = 19;
+            _moveCount = 0;
+            _depth = 0;
+            _mainDepth = 0;
+            _mainEnded = false;
+            _inMainLine = false;
+        }
+
+        @Override
+        public void endGame(int index) {
+            int game = _firstGame + index;
+            if (game >= _fingerprints.length)
+                return;
+            _fingerprints[game] = _getFingerprint();
+            _moveCounts[game] = _moveCount;
+        }
+
+        @Override
+        public void startVariation(int depth) {
+            _depth = depth;
+            // The main line continues in the first variation of each node
+            if (!_mainEnded && depth == _mainDepth + 1)
+                _mainDepth = depth;
+        }
+
+        @Override
+        public void endVariation(int depth) {
+            if (depth == _mainDepth)
+                _mainEnded = true;
+            _depth = depth - 1;
+        }
+
+        @Override
+        public void startNode() {
+            _inMainLine = !_mainEnded && _depth == _mainDepth;
+            _nodeIndex++;
+        }
+
+        @Override
+        public void property(int type, CharSequence identifier, CharSequence value) {
+            if (!_inMainLine)
+                return;
+            switch (type) {
+                case SgfParser.PROP_BLACK:
+                case SgfParser.PROP_WHITE:
+                    if (value.length() >= 2) {
+                        _add(_MOVE, type == SgfParser.PROP_BLACK ? GoBoard.BLACK : GoBoard.WHITE,
+                                value.charAt(0) - 'a', value.charAt(1) - 'a');
+                    }
+                    break;
+
+                case SgfParser.PROP_ADD_BLACK:
+                case SgfParser.PROP_ADD_WHITE:
+                case SgfParser.PROP_ADD_EMPTY:
+                    if (value.length() < 2)
+                        break;
+                    byte color = (type == SgfParser.PROP_ADD_BLACK) ? GoBoard.BLACK
+                            : (type == SgfParser.PROP_ADD_WHITE) ? GoBoard.WHITE : GoBoard.EMPTY;
+                    int x0 = value.charAt(0) - 'a';
+                    int y0 = value.charAt(1) - 'a';
+                    int x1 = x0;
+                    int y1 = y0;
+                    // Compressed list of points ("aa:cc")
+                    if (value.length() >= 5 && value.charAt(2) == ':') {
+                        x1 = value.charAt(3) - 'a';
+                        y1 = value.charAt(4) - 'a';
+                    }
+                    for (int y = Math.min(y0, y1); y <= Math.max(y0, y1); y++) {
+                        for (int x = Math.min(x0, x1); x <= Math.max(x0, x1); x++)
+                            _add(_SETUP, color, x, y);
+                    }
+                    break;
+
+                case SgfParser.PROP_SIZE:
+                    int size = 0;
+                    for (int i = 0; i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9'; i++)
+                        size = size * 10 + (value.charAt(i) - '0');
+                    if (size >= 2 && size <= 25)
+                        _size = size;
+                    break;
+            }
+        }
+
+        private void _add(int kind, byte color, int x, int y) {
+            if (x < 0 || y < 0 || x > 25 || y > 25)
+                return;
+            if (_count == _values.length) {
+                _nodes = Arrays.copyOf(_nodes, _count * 2);
+                _values = Arrays.copyOf(_values, _count * 2);
+            }
+            _nodes[_count] = _nodeIndex;
+            _values[_count] = (kind << 24) | (color << 16) | (x << 8) | y;
+            _count++;
+        }
+
+        /**
+         * Returns the smallest hash of the main line among the symmetries of the board. The set up stones and
+         * moves of a node are added, so their order doesn't matter, and the nodes are combined in order.
+         */
+        private long _getFingerprint() {
+            int size = _size;
+            _moveCount = 0;
+            long fingerprint = Long.MAX_VALUE;
+            for (int symmetry = 0; symmetry < 8; symmetry++) {
+                long hash = 0;
+                long nodeHash = 0;
+                int node = -1;
+                int moveCount = 0;
+                for (int i = 0; i < _count; i++) {
+                    int value = _values[i];
+                    int x = (value >> 8) & 0xFF;
+                    int y = value & 0xFF;
+                    // Passes written as "tt" and other points outside of the board are ignored
+                    if (x >= size || y >= size)
+                        continue;
+                    if (_nodes[i] != node) {
+                        if (nodeHash != 0)
+                            hash = CanonicalForm.mix(hash * 0x9E3779B97F4A7C15L + nodeHash);
+                        nodeHash = 0;
+                        node = _nodes[i];
+                    }
+                    if ((value >>> 24) == _MOVE)
+                        moveCount++;
+                    nodeHash += CanonicalForm.mix(
+                            ((long) (value >>> 16) << 16) | BoardSymmetry.transform(symmetry, x, y, size));
+                }
+                if (nodeHash != 0)
+                    hash = CanonicalForm.mix(hash * 0x9E3779B97F4A7C15L + nodeHash);
+                hash = CanonicalForm.mix(hash ^ ((long) size << 32 | moveCount));
+                fingerprint = Math.min(fingerprint, hash);
+                _moveCount = moveCount;
+            }
+            return fingerprint;
+        }
+    }
+}
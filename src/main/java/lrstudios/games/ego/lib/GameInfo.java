@@ -18,6 +18,7 @@
 
 package lrstudios.games.ego.lib;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -205,4 +206,11 @@ public class GameInfo {
     public boolean hasTag(String key) {
         return _tags.get(key) != null;
     }
+
+    /**
+     * Returns a read-only view of all tags.
+     */
+    public Map<String, String> getTags() {
+        return Collections.unmodifiableMap(_tags);
+    }
 }
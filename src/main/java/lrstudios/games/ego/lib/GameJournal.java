@@ -0,0 +1,305 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+
+/**
+ * Saves a game incrementally : each call to {@link #record(GoGame)} only appends the moves played
+ * (or removed) since the last call to a journal file. The journal is periodically compacted into a full
+ * {@link GameSnapshot} of the game. A saved game can be restored with {@link #restore(File, File)}.
+ * <p/>
+ * The journal follows the current variation of the game, so it is meant for games where undone moves
+ * are removed from the tree (like games against GTP engines).
+ */
+public final class GameJournal implements Closeable {
+    private static final int _MAGIC = 0x474A524E; // "GJRN"
+    private static final int _RECORD_SIZE = 5;
+    private static final byte _TRUNCATE = -1;
+
+    private final File _snapshotFile;
+    private final File _journalFile;
+    private int _syncInterval = 8;
+    private int _compactInterval = 200;
+
+    private FileOutputStream _stream;
+    private final ArrayList<GameNode> _path = new ArrayList<>();
+    private final ArrayList<GameNode> _newNodes = new ArrayList<>();
+    private byte[] _buffer = new byte[_RECORD_SIZE * 16];
+    private int _bufferPos;
+    private int _recordCount;
+    private int _unsyncedCount;
+
+
+    /**
+     * @param snapshotFile The file which contains the last full snapshot of the game.
+     * @param journalFile  The file which contains the moves played since the last snapshot.
+     */
+    public GameJournal(File snapshotFile, File journalFile) {
+        _snapshotFile = snapshotFile;
+        _journalFile = journalFile;
+    }
+
+
+    /**
+     * Sets the number of records written before the journal is synchronized with the storage device.
+     */
+    public void setSyncInterval(int records) {
+        _syncInterval = Math.max(1, records);
+    }
+
+    /**
+     * Sets the number of records written before the journal is compacted into a new snapshot.
+     */
+    public void setCompactInterval(int records) {
+        _compactInterval = Math.max(1, records);
+    }
+
+
+    /**
+     * Records the current variation of the specified game. Only the moves which changed since the last
+     * call are written, unless this is the first call or the journal is full : in that case, a full
+     * snapshot of the game is saved.
+     *
+     * @throws IOException An error occurred during writing.
+     */
+    public void record(GoGame game) throws IOException {
+        if (_stream == null) {
+            compact(game);
+            return;
+        }
+
+        // Find the moves which are not in the journal yet, from the current node to the last common node
+        GameNode node = game.getCurrentNode();
+        int depth = game.getCurrentMoveNumber();
+        _newNodes.clear();
+        while (depth > _path.size()) {
+            _newNodes.add(node);
+            node = node.parentNode;
+            depth--;
+        }
+        while (depth > 0 && _path.get(depth - 1) != node) {
+            _newNodes.add(node);
+            node = node.parentNode;
+            depth--;
+        }
+        if (depth == _path.size() && _newNodes.isEmpty())
+            return;
+
+        _bufferPos = 0;
+        if (_newNodes.isEmpty())
+            _putRecord(depth + 1, GameNode.COORD_UNDEFINED, GameNode.COORD_UNDEFINED, _TRUNCATE);
+        while (_path.size() > depth)
+            _path.remove(_path.size() - 1);
+        for (int i = _newNodes.size() - 1; i >= 0; i--) {
+            GameNode newNode = _newNodes.get(i);
+            _path.add(newNode);
+            _putRecord(_path.size(), newNode.x, newNode.y, newNode.color);
+        }
+        _newNodes.clear();
+
+        // The records are written immediately (so they survive if the process is killed),
+        // but the file is only synchronized from time to time
+        int records = _bufferPos / _RECORD_SIZE;
+        _stream.write(_buffer, 0, _bufferPos);
+        _recordCount += records;
+        _unsyncedCount += records;
+        if (_recordCount >= _compactInterval)
+            compact(game);
+        else if (_unsyncedCount >= _syncInterval)
+            sync();
+    }
+
+    /**
+     * Saves a full snapshot of the game and starts a new empty journal.
+     *
+     * @throws IOException An error occurred during writing.
+     */
+    public void compact(GoGame game) throws IOException {
+        // The new snapshot is written next to the old one, so a valid snapshot always exists
+        File tempFile = new File(_snapshotFile.getPath() + ".tmp");
+        FileOutputStream snapshotStream = new FileOutputStream(tempFile);
+        try {
+            GameSnapshot.save(game, snapshotStream);
+            snapshotStream.getFD().sync();
+        }
+        finally {
+            Utils.closeObject(snapshotStream);
+        }
+        if (!tempFile.renameTo(_snapshotFile))
+            throw new IOException("Unable to replace the snapshot " + _snapshotFile);
+
+        // Even if the process is killed before the journal is reset, replaying the old journal on
+        // the new snapshot gives the same game, because records contain absolute move numbers
+        Utils.closeObject(_stream);
+        _stream = new FileOutputStream(_journalFile);
+        _stream.write(new byte[]{(byte) (_MAGIC >>> 24), (byte) (_MAGIC >>> 16), (byte) (_MAGIC >>> 8), (byte) _MAGIC});
+        _stream.getFD().sync();
+
+        _path.clear();
+        GameNode node = game.getCurrentNode();
+        for (int i = game.getCurrentMoveNumber(); i > 0; i--) {
+            _path.add(node);
+            node = node.parentNode;
+        }
+        Collections.reverse(_path);
+        _recordCount = 0;
+        _unsyncedCount = 0;
+    }
+
+    /**
+     * Synchronizes the journal with the storage device.
+     *
+     * @throws IOException An error occurred during writing.
+     */
+    public void sync() throws IOException {
+        if (_stream != null && _unsyncedCount > 0) {
+            _stream.getFD().sync();
+            _unsyncedCount = 0;
+        }
+    }
+
+    /**
+     * Synchronizes and closes the journal. The next call to {@link #record(GoGame)} will save a new snapshot.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_stream == null)
+            return;
+        try {
+            sync();
+        }
+        finally {
+            Utils.closeObject(_stream);
+            _stream = null;
+            _path.clear();
+        }
+    }
+
+
+    /**
+     * Loads the snapshot and replays the journal over it (if it exists, the journal file can be null).
+     * The snapshot can also be an SGF file (older versions saved SGF snapshots).
+     *
+     * @throws IOException An error occurred during reading (the snapshot may not exist or be corrupted).
+     */
+    public static GoGame restore(File snapshotFile, File journalFile) throws IOException {
+        GoGame game;
+        byte[] header = new byte[4];
+        FileInputStream snapshotStream = new FileInputStream(snapshotFile);
+        try {
+            int read = snapshotStream.read(header);
+            if (read == header.length && GameSnapshot.isSnapshot(header)) {
+                game = GameSnapshot.load(snapshotFile);
+            }
+            else {
+                snapshotStream.getChannel().position(0);
+                game = GoGame.loadSgf(snapshotStream)[0];
+            }
+        }
+        finally {
+            Utils.closeObject(snapshotStream);
+        }
+
+        if (journalFile == null)
+            return game;
+        DataInputStream journal;
+        try {
+            journal = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 4096));
+        }
+        catch (FileNotFoundException ignored) {
+            return game;
+        }
+        game.beginBatch();
+        try {
+            if (journal.readInt() == _MAGIC)
+                _replay(game, journal);
+        }
+        catch (EOFException ignored) { // An incomplete record may have been written if the process was killed
+        }
+        finally {
+            game.endBatch();
+            Utils.closeObject(journal);
+        }
+        return game;
+    }
+
+    private static void _replay(GoGame game, DataInputStream journal) throws IOException {
+        int depth = game.getCurrentMoveNumber();
+        while (true) {
+            int recordDepth = journal.readUnsignedShort();
+            byte x = journal.readByte();
+            byte y = journal.readByte();
+            byte color = journal.readByte();
+
+            int target = recordDepth - 1;
+            while (depth > target) {
+                game.undo(true);
+                depth--;
+            }
+            while (depth < target) {
+                if (game.navigate(1) == 0)
+                    throw new IOException("The journal does not match the snapshot (move " + recordDepth + ")");
+                depth++;
+            }
+
+            // The journal replaces the current variation : the old continuation is removed if it changed
+            GameNode current = game.getCurrentNode();
+            int size = current.nextNodes.size();
+            if (size > 0) {
+                int lastVariation = current.lastVariation;
+                GameNode next = current.nextNodes.get(lastVariation < 0 || lastVariation >= size ? 0 : lastVariation);
+                if (color == _TRUNCATE || next.x != x || next.y != y || next.color != color) {
+                    // Removed through the game so its navigation cache stays valid
+                    game.navigate(1);
+                    game.undo(true);
+                }
+            }
+            if (color != _TRUNCATE) {
+                game.placeMove(x, y, color);
+                depth++;
+            }
+        }
+    }
+
+
+    private void _putRecord(int depth, byte x, byte y, byte color) {
+        if (_bufferPos + _RECORD_SIZE > _buffer.length) {
+            byte[] newBuffer = new byte[_buffer.length * 2];
+            System.arraycopy(_buffer, 0, newBuffer, 0, _bufferPos);
+            _buffer = newBuffer;
+        }
+        _buffer[_bufferPos++] = (byte) (depth >>> 8);
+        _buffer[_bufferPos++] = (byte) depth;
+        _buffer[_bufferPos++] = x;
+        _buffer[_bufferPos++] = y;
+        _buffer[_bufferPos++] = color;
+    }
+}
@@ -19,6 +19,7 @@
 package lrstudios.games.ego.lib;
 
 import java.util.ArrayList;
+import java.util.Stack;
 
 
 /**
@@ -77,6 +78,11 @@ public final class GameNode {
      */
     public ArrayList<BoardMark> boardMarks;
 
+    /**
+     * The unparsed following nodes, when the tree is loaded lazily (null if they are already loaded).
+     */
+    private SgfByteParser.LazyVariation _lazyVariation;
+
 
     /**
      * Creates a new empty node with default values.
@@ -120,6 +126,87 @@ public final class GameNode {
         }
     }
 
+    /**
+     * Gets the raw UTF-8 bytes of the comment (can be null).
+     */
+    byte[] getCommentBytes() {
+        return _comment_utf8;
+    }
+
+    /**
+     * Sets the raw UTF-8 bytes of the comment (can be null).
+     */
+    void setCommentBytes(byte[] comment) {
+        _comment_utf8 = comment;
+    }
+
+    /**
+     * Returns false if the following nodes have not been parsed yet.
+     */
+    public boolean isLoaded() {
+        return _lazyVariation == null;
+    }
+
+    /**
+     * Parses the following nodes if they have not been parsed yet (see {@link SgfParser.ParseOptions#loadVariationsLazily}).
+     * This must be called before reading {@link #nextNodes}, except on the current node of a game,
+     * which is always loaded.
+     */
+    public void ensureLoaded() {
+        if (_lazyVariation != null) {
+            SgfByteParser.LazyVariation variation = _lazyVariation;
+            _lazyVariation = null;
+            variation.load(this);
+        }
+    }
+
+    void setLazyVariation(SgfByteParser.LazyVariation variation) {
+        _lazyVariation = variation;
+    }
+
+    /**
+     * Returns a copy of this node and of all the following nodes. The copy has no parent node.
+     * The stones and marks are shared, as they are never modified once created.
+     */
+    public GameNode copyTree() {
+        GameNode copy = _copyNode(this);
+
+        // Each stack entry is a node to copy, followed by the copy of its parent
+        Stack<GameNode> stack = new Stack<>();
+        ensureLoaded();
+        for (int i = nextNodes.size() - 1; i >= 0; i--) {
+            stack.push(nextNodes.get(i));
+            stack.push(copy);
+        }
+        while (!stack.empty()) {
+            GameNode parentCopy = stack.pop();
+            GameNode node = stack.pop();
+            GameNode nodeCopy = _copyNode(node);
+            nodeCopy.parentNode = parentCopy;
+            parentCopy.nextNodes.add(nodeCopy);
+
+            node.ensureLoaded();
+            nodeCopy.nextNodes.ensureCapacity(node.nextNodes.size());
+            for (int i = node.nextNodes.size() - 1; i >= 0; i--) {
+                stack.push(node.nextNodes.get(i));
+                stack.push(nodeCopy);
+            }
+        }
+        return copy;
+    }
+
+    private static GameNode _copyNode(GameNode node) {
+        GameNode copy = new GameNode(node.x, node.y, node.color);
+        copy.value = node.value;
+        copy.lastVariation = node.lastVariation;
+        copy._comment_utf8 = node._comment_utf8;
+        if (node.setStones != null)
+            copy.setStones = new ArrayList<>(node.setStones);
+        if (node.boardMarks != null)
+            copy.boardMarks = new ArrayList<>(node.boardMarks);
+        return copy;
+    }
+
     /**
      * Adds a stone or empty intersection to be set on the board.
      */
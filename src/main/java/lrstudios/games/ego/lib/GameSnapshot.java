@@ -0,0 +1,453 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+
+/**
+ * Saves and loads the complete state of a {@link GoGame} in a compact binary format : the game tree,
+ * the game information, the current position, the undo history, the prisoners and the final status.
+ * <p/>
+ * Unlike SGF, a snapshot is loaded without replaying the moves on the board, so loading it only depends
+ * on the size of the file.
+ */
+public final class GameSnapshot {
+    public static final int MAGIC = 0x45475353; // "EGSS"
+    private static final int _VERSION = 1;
+
+
+    private GameSnapshot() {
+    }
+
+
+    /**
+     * Returns true if the specified bytes are the beginning of a snapshot.
+     */
+    public static boolean isSnapshot(byte[] header) {
+        return header.length >= 4 && ByteBuffer.wrap(header).getInt(0) == MAGIC;
+    }
+
+
+    /**
+     * Saves the state of the specified game in the specified stream.
+     *
+     * @throws IOException An error occurred during writing.
+     */
+    public static void save(GoGame game, OutputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(_VERSION);
+
+        _writeInfo(out, game.info);
+        out.writeInt(game.gameNumber);
+
+        // Game tree (in pre-order), the current node and the play node are saved as indexes in this order
+        int currentIndex = -1, playIndex = -1;
+        int count = 0;
+        ByteArrayOutputStream treeBytes = new ByteArrayOutputStream(4096);
+        DataOutputStream treeOut = new DataOutputStream(treeBytes);
+        Stack<GameNode> stack = new Stack<>();
+        stack.push(game.getBaseNode());
+        while (!stack.empty()) {
+            GameNode node = stack.pop();
+            node.ensureLoaded();
+            if (node == game._currentNode)
+                currentIndex = count;
+            if (node == game._playNode)
+                playIndex = count;
+            _writeNode(treeOut, node);
+            count++;
+
+            for (int i = node.nextNodes.size() - 1; i >= 0; i--)
+                stack.push(node.nextNodes.get(i));
+        }
+        out.writeInt(count);
+        out.writeInt(currentIndex);
+        out.writeInt(playIndex);
+        treeOut.flush();
+        treeBytes.writeTo(out);
+
+        // Current position
+        int size = game._size;
+        out.writeByte(size);
+        out.write(game.board.getBoardArray(), 0, size * size);
+        _writeCoords(out, game.board.getKoCoords());
+        out.write(game.finalStatus.getBoardArray(), 0, size * size);
+        out.writeByte(game._currentPlayer);
+        out.writeInt(game._blackPrisoners);
+        out.writeInt(game._whitePrisoners);
+
+        // Undo history
+        out.writeInt(game._playedMoves.size());
+        for (GoGame.MoveInfo moveInfo : game._playedMoves) {
+            _writeCoords(out, moveInfo.ko);
+            _writeStones(out, moveInfo.prisoners);
+            _writeStones(out, moveInfo.removedStones);
+        }
+
+        out.flush();
+        bytes.writeTo(stream);
+        stream.flush();
+    }
+
+    /**
+     * Loads a game from the specified file.
+     *
+     * @throws IOException An error occurred during reading (the file may not be a valid snapshot).
+     */
+    public static GoGame load(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return load(stream, file.length());
+        }
+        finally {
+            Utils.closeObject(stream);
+        }
+    }
+
+    /**
+     * Loads a game from the specified stream.
+     *
+     * @throws IOException An error occurred during reading (the stream may not contain a valid snapshot).
+     */
+    public static GoGame load(InputStream stream) throws IOException {
+        return load(stream, -1);
+    }
+
+    private static GoGame load(InputStream stream, long length) throws IOException {
+        byte[] data;
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            data = new byte[(int) length];
+            int offset = 0, read;
+            while (offset < data.length && (read = stream.read(data, offset, data.length - offset)) > 0)
+                offset += read;
+            if (offset < data.length)
+                throw new IOException("The snapshot is truncated");
+        }
+        else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            Utils.copyStream(stream, bytes, 4096);
+            data = bytes.toByteArray();
+        }
+
+        try {
+            return _load(ByteBuffer.wrap(data));
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("The snapshot is truncated");
+        }
+    }
+
+    private static GoGame _load(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC)
+            throw new IOException("The data does not contain a game snapshot");
+        int version = in.getInt();
+        if (version > _VERSION)
+            throw new IOException("Unsupported snapshot version (" + version + ")");
+
+        GameInfo info = _readInfo(in);
+        int gameNumber = in.getInt();
+
+        // Game tree : each node is followed by its children, so the parents waiting for
+        // children are kept in a stack with the number of children they still need
+        int count = in.getInt();
+        int currentIndex = in.getInt();
+        int playIndex = in.getInt();
+        GameNode baseNode = null, currentNode = null, playNode = null;
+        Stack<GameNode> parents = new Stack<>();
+        Stack<Integer> remaining = new Stack<>();
+        for (int i = 0; i < count; i++) {
+            GameNode node = new GameNode();
+            int childCount = _readNode(in, node);
+
+            if (i == 0) {
+                baseNode = node;
+            }
+            else {
+                if (parents.empty())
+                    throw new IOException("The game tree is corrupted");
+                GameNode parent = parents.peek();
+                node.parentNode = parent;
+                parent.nextNodes.add(node);
+                int left = remaining.pop() - 1;
+                if (left > 0)
+                    remaining.push(left);
+                else
+                    parents.pop();
+            }
+            if (childCount > 0) {
+                node.nextNodes = new ArrayList<>(childCount);
+                parents.push(node);
+                remaining.push(childCount);
+            }
+
+            if (i == currentIndex)
+                currentNode = node;
+            if (i == playIndex)
+                playNode = node;
+        }
+        if (baseNode == null || currentNode == null)
+            throw new IOException("The game tree is corrupted");
+
+        // Current position
+        int size = in.get();
+        byte[] colors = new byte[size * size];
+        in.get(colors);
+        GoGame game = new GoGame(new GoBoard(size, colors), info.komi);
+        game.info = info;
+        game.gameNumber = gameNumber;
+        game._baseNode = baseNode;
+        game._currentNode = currentNode;
+        game._playNode = playNode;
+
+        Coords ko = _readCoords(in);
+        if (ko != null)
+            game.board.setKoCoords(ko.x, ko.y);
+        in.get(game.finalStatus.getBoardArray());
+        game._currentPlayer = in.get();
+        game._blackPrisoners = in.getInt();
+        game._whitePrisoners = in.getInt();
+
+        // Undo history
+        int moveCount = in.getInt();
+        for (int i = 0; i < moveCount; i++) {
+            GoGame.MoveInfo moveInfo = game.new MoveInfo(null, GoBoard.EMPTY, _readCoords(in));
+            moveInfo.prisoners = _readStones(in);
+            moveInfo.removedStones = _readStones(in);
+            game._playedMoves.push(moveInfo);
+        }
+
+        game.clearNavigationCache();
+        game.updateMarks();
+        return game;
+    }
+
+
+    private static void _writeNode(DataOutputStream out, GameNode node) throws IOException {
+        out.writeByte(node.x);
+        out.writeByte(node.y);
+        out.writeByte(node.color);
+        out.writeByte(node.value);
+        out.writeByte(node.lastVariation);
+        out.writeInt(node.nextNodes.size());
+
+        byte[] comment = node.getCommentBytes();
+        if (comment == null) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(comment.length);
+            out.write(comment);
+        }
+
+        _writeStones(out, node.setStones);
+
+        if (node.boardMarks == null) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(node.boardMarks.size());
+            for (BoardMark mark : node.boardMarks) {
+                out.writeByte(mark.x);
+                out.writeByte(mark.y);
+                out.writeByte(mark.type);
+                out.writeChar(mark.getLabel());
+            }
+        }
+    }
+
+    private static int _readNode(ByteBuffer in, GameNode node) {
+        node.x = in.get();
+        node.y = in.get();
+        node.color = in.get();
+        node.value = in.get();
+        node.lastVariation = in.get();
+        int childCount = in.getInt();
+
+        int commentLength = in.getInt();
+        if (commentLength >= 0) {
+            byte[] comment = new byte[commentLength];
+            in.get(comment);
+            node.setCommentBytes(comment);
+        }
+
+        node.setStones = _readStones(in);
+
+        int markCount = in.getInt();
+        if (markCount >= 0) {
+            node.boardMarks = new ArrayList<>(markCount);
+            for (int i = 0; i < markCount; i++) {
+                byte x = in.get();
+                byte y = in.get();
+                byte type = in.get();
+                char label = in.getChar();
+                node.boardMarks.add(type == BoardMark.MARK_LABEL ? new BoardLabelMark(x, y, label) : new BoardMark(x, y, type));
+            }
+        }
+        return childCount;
+    }
+
+    private static void _writeStones(DataOutputStream out, List<LightCoords> stones) throws IOException {
+        if (stones == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(stones.size());
+        for (LightCoords coords : stones) {
+            out.writeByte(coords.x);
+            out.writeByte(coords.y);
+            out.writeByte(coords.color);
+        }
+    }
+
+    private static ArrayList<LightCoords> _readStones(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0)
+            return null;
+        ArrayList<LightCoords> stones = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte x = in.get();
+            byte y = in.get();
+            stones.add(new LightCoords(x, y, in.get()));
+        }
+        return stones;
+    }
+
+    private static void _writeCoords(DataOutputStream out, Coords coords) throws IOException {
+        out.writeByte(coords == null ? -1 : coords.x);
+        out.writeByte(coords == null ? -1 : coords.y);
+    }
+
+    private static Coords _readCoords(ByteBuffer in) {
+        byte x = in.get();
+        byte y = in.get();
+        return (x < 0) ? null : new Coords(x, y);
+    }
+
+
+    private static void _writeInfo(DataOutputStream out, GameInfo info) throws IOException {
+        out.writeDouble(info.komi);
+        out.writeInt(info.handicap);
+        out.writeInt(info.boardSize);
+        _writeString(out, info.blackName);
+        _writeString(out, info.whiteName);
+        _writeString(out, info.blackRank);
+        _writeString(out, info.whiteRank);
+        _writeString(out, info.blackTeam);
+        _writeString(out, info.whiteTeam);
+        _writeString(out, info.annotationsBy);
+        _writeString(out, info.copyrightInfo);
+        _writeString(out, info.applicationName);
+        _writeString(out, info.applicationVersion);
+        _writeString(out, info.result == null ? null : info.result.toString());
+        _writeString(out, info.gameDate);
+        _writeString(out, info.eventName);
+        _writeString(out, info.gameName);
+        _writeString(out, info.gameComment);
+        _writeString(out, info.opening);
+        _writeString(out, info.overtimeMethod);
+        _writeString(out, info.firstPlayer);
+        _writeString(out, info.place);
+        _writeString(out, info.round);
+        _writeString(out, info.rules);
+        _writeString(out, info.source);
+        out.writeInt(info.timeLimit == null ? -1 : info.timeLimit);
+        _writeString(out, info.scribe);
+        _writeString(out, info.originalSgf);
+
+        Map<String, String> tags = info.getTags();
+        out.writeInt(tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            _writeString(out, tag.getKey());
+            _writeString(out, tag.getValue());
+        }
+    }
+
+    private static GameInfo _readInfo(ByteBuffer in) throws IOException {
+        GameInfo info = new GameInfo();
+        info.komi = in.getDouble();
+        info.handicap = in.getInt();
+        info.boardSize = in.getInt();
+        info.blackName = _readString(in);
+        info.whiteName = _readString(in);
+        info.blackRank = _readString(in);
+        info.whiteRank = _readString(in);
+        info.blackTeam = _readString(in);
+        info.whiteTeam = _readString(in);
+        info.annotationsBy = _readString(in);
+        info.copyrightInfo = _readString(in);
+        info.applicationName = _readString(in);
+        info.applicationVersion = _readString(in);
+        String result = _readString(in);
+        info.result = (result == null) ? null : GoGameResult.tryParse(result);
+        info.gameDate = _readString(in);
+        info.eventName = _readString(in);
+        info.gameName = _readString(in);
+        info.gameComment = _readString(in);
+        info.opening = _readString(in);
+        info.overtimeMethod = _readString(in);
+        info.firstPlayer = _readString(in);
+        info.place = _readString(in);
+        info.round = _readString(in);
+        info.rules = _readString(in);
+        info.source = _readString(in);
+        int timeLimit = in.getInt();
+        info.timeLimit = (timeLimit < 0) ? null : timeLimit;
+        info.scribe = _readString(in);
+        info.originalSgf = _readString(in);
+
+        int tagCount = in.getInt();
+        for (int i = 0; i < tagCount; i++)
+            info.putTag(_readString(in), _readString(in));
+        return info;
+    }
+
+    private static void _writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String _readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        String str = new String(in.array(), in.arrayOffset() + in.position(), length, "UTF-8");
+        in.position(in.position() + length);
+        return str;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.util.ArrayList;
+
+
+/**
+ * A movable reference to a node of a variation tree which is not made of {@link GameNode} objects
+ * (see {@link CompactGameTree} and {@link MappedGameTree}). Node indexes are specific to each tree.
+ */
+public interface GameTreeCursor {
+    /**
+     * Returns the index of the current node.
+     */
+    int getIndex();
+
+    /**
+     * Moves to the node with the specified index.
+     */
+    void moveTo(int index);
+
+    /**
+     * Moves to the parent node. Returns false (and doesn't move) if the current node is the root.
+     */
+    boolean gotoParent();
+
+    /**
+     * Moves to the first child. Returns false (and doesn't move) if the current node has no children.
+     */
+    boolean gotoFirstChild();
+
+    /**
+     * Moves to the next sibling. Returns false (and doesn't move) if the current node is the last one.
+     */
+    boolean gotoNextSibling();
+
+    /**
+     * Moves to the child at the specified position. Returns false (and doesn't move) if it doesn't exist.
+     */
+    boolean gotoChild(int position);
+
+    byte getX();
+
+    byte getY();
+
+    byte getColor();
+
+    /**
+     * Returns the move value, between 0 (lower) and 100 (better), or -1 if not used.
+     */
+    byte getValue();
+
+    byte getLastVariation();
+
+    boolean isRoot();
+
+    boolean hasChildren();
+
+    int getChildCount();
+
+    /**
+     * Gets the comment of the current node (never null).
+     */
+    String getComment();
+
+    /**
+     * Returns a new list of the stones set by the current node (or null if there are none).
+     */
+    ArrayList<LightCoords> getStones();
+
+    /**
+     * Returns a new list of the marks of the current node (or null if there are none).
+     */
+    ArrayList<BoardMark> getMarks();
+
+    /**
+     * Creates a regular tree from the current node and all of its variations.
+     */
+    GameNode toGameNode();
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.util.Arrays;
+
+
+/**
+ * Walks a variation tree in depth-first order without recursion (the Android stack is too small for
+ * long games). Each node produces an ENTER event before its variations, and a LEAVE event after them
+ * (variations which have not been loaded yet are loaded when their first node is entered) :
+ * <pre>
+ * GameTreeWalker walker = new GameTreeWalker(game.getBaseNode());
+ * int event;
+ * while ((event = walker.next()) != GameTreeWalker.END) {
+ *     if (event == GameTreeWalker.ENTER)
+ *         ...
+ * }
+ * </pre>
+ */
+public final class GameTreeWalker {
+    public static final int
+            END = 0,
+            ENTER = 1,
+            LEAVE = 2;
+
+    private GameNode[] _nodes = new GameNode[64];
+    private int[] _positions = new int[64];
+    private int _depth = -1;
+    private GameNode _root;
+    private boolean _skipChildren;
+    private int _event = END;
+
+
+    /**
+     * Creates a walker which will visit the specified node and all of its variations.
+     */
+    public GameTreeWalker(GameNode root) {
+        _root = root;
+    }
+
+
+    /**
+     * Moves to the next event and returns it (ENTER, LEAVE, or END when the whole tree has been visited).
+     */
+    public int next() {
+        if (_root != null) {
+            _push(_root);
+            _root = null;
+            return _event = ENTER;
+        }
+        if (_depth < 0)
+            return _event = END;
+
+        if (_event == ENTER && _skipChildren) {
+            _skipChildren = false;
+            return _event = LEAVE;
+        }
+        if (_event == LEAVE) {
+            _nodes[_depth--] = null;
+            if (_depth < 0)
+                return _event = END;
+        }
+
+        GameNode node = _nodes[_depth];
+        int position = _positions[_depth];
+        if (position < node.nextNodes.size()) {
+            _positions[_depth]++;
+            _push(node.nextNodes.get(position));
+            return _event = ENTER;
+        }
+        return _event = LEAVE;
+    }
+
+    private void _push(GameNode node) {
+        node.ensureLoaded();
+        _depth++;
+        if (_depth == _nodes.length) {
+            _nodes = Arrays.copyOf(_nodes, _depth * 2);
+            _positions = Arrays.copyOf(_positions, _depth * 2);
+        }
+        _nodes[_depth] = node;
+        _positions[_depth] = 0;
+    }
+
+    /**
+     * Doesn't visit the variations of the current node : the next event will be its LEAVE event.
+     * This must be called after an ENTER event.
+     */
+    public void skipChildren() {
+        if (_event == ENTER)
+            _skipChildren = true;
+    }
+
+    /**
+     * Returns the node of the current event.
+     */
+    public GameNode getNode() {
+        return _nodes[_depth];
+    }
+
+    /**
+     * Returns the depth of the current node (0 for the root).
+     */
+    public int getDepth() {
+        return _depth;
+    }
+
+    /**
+     * Returns the position of the current node in the variations of its parent (0 for the root).
+     */
+    public int getIndex() {
+        return (_depth == 0) ? 0 : _positions[_depth - 1] - 1;
+    }
+
+    /**
+     * Returns the number of variations of the parent of the current node, including itself (1 for the root).
+     */
+    public int getSiblingCount() {
+        return (_depth == 0) ? 1 : _nodes[_depth - 1].nextNodes.size();
+    }
+}
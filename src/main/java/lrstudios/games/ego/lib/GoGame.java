@@ -25,6 +25,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Stack;
 
@@ -37,6 +38,11 @@ public class GoGame {
 
     public static final int BASE_NODE_COORD = -9;
 
+    /**
+     * A copy of the board is kept every CHECKPOINT_INTERVAL moves along the visited variation.
+     */
+    public static final int CHECKPOINT_INTERVAL = 32;
+
     public GameInfo info = new GameInfo();
     public int gameNumber;
     public GoBoard board;
@@ -54,6 +60,15 @@ public class GoGame {
     protected GameNode _currentNode;
     protected GameNode _playNode;
 
+    // The last visited variation : it always starts with the current variation, and may continue after
+    // the current node if moves have been undone. Each node is saved with its undo informations.
+    private ArrayList<GameNode> _pathNodes = new ArrayList<>();
+    private ArrayList<MoveInfo> _pathMoves = new ArrayList<>();
+    private ArrayList<Checkpoint> _checkpoints = new ArrayList<>();
+
+    private int _batchLevel;
+    private byte[] _koBuffer;
+
     private boolean[][] _loop_passed;
     private boolean[][] _loop_localPassed;
     private int _loop_markStoneType;
@@ -113,6 +128,7 @@ public class GoGame {
         info = gameInfo;
         _baseNode = baseNode;
         _currentNode = baseNode;
+        clearNavigationCache();
         gotoFirstMove();
         _setRequestedStones();
         updateMarks();
@@ -198,6 +214,36 @@ public class GoGame {
             x = -1;
             y = -1;
         }
+        List<Coords> prisoners = _placeStone(x, y, color);
+        _addToTree(x, y, color, prisoners);
+        _endMove();
+    }
+
+    /**
+     * Plays the specified child of the current node, which becomes the current one. Unlike placeMove(),
+     * the node is never searched by its coordinates, as several children may have the same move.
+     */
+    private void _replayNode(GameNode node) {
+        int x = node.x;
+        int y = node.y;
+        if (x >= _size) {
+            x = -1;
+            y = -1;
+        }
+        List<Coords> prisoners = _placeStone(x, y, node.color);
+        node.ensureLoaded();
+        _currentNode = node;
+        GameNode parentNode = node.parentNode;
+        if (parentNode != null)
+            parentNode.lastVariation = (byte) Math.max(0, parentNode.nextNodes.indexOf(node));
+        _playedMoves.push(new MoveInfo(prisoners, GoBoard.getOppositeColor(node.color), board.getKoCoords()));
+        _endMove();
+    }
+
+    /**
+     * Puts a stone on the board and removes the captured stones (nothing is done for a pass).
+     */
+    private List<Coords> _placeStone(int x, int y, byte color) {
         board.setKoCoords(-1, -1);
         List<Coords> prisoners = null;
         if (x >= 0 && y >= 0) {
@@ -205,7 +251,9 @@ public class GoGame {
             if (prisoners.size() == 1) {
                 // Check if the move produces a ko
                 byte[] colors = board.getBoardArray();
-                byte[] savedColors = new byte[colors.length];
+                if (_koBuffer == null || _koBuffer.length != colors.length)
+                    _koBuffer = new byte[colors.length];
+                byte[] savedColors = _koBuffer;
                 System.arraycopy(colors, 0, savedColors, 0, colors.length);
 
                 Coords prisoner = prisoners.get(0);
@@ -221,11 +269,15 @@ public class GoGame {
             else
                 _blackPrisoners += prisoners.size();
         }
+        return prisoners;
+    }
 
-        _addToTree(x, y, color, prisoners);
+    private void _endMove() {
         switchCurrentPlayer();
         _setRequestedStones();
-        updateMarks();
+        _updatePath();
+        if (_batchLevel == 0)
+            updateMarks();
     }
 
     /**
@@ -281,11 +333,15 @@ public class GoGame {
         }
 
         _currentNode = _currentNode.parentNode;
-        if (removeFromTree)
+        if (removeFromTree) {
             _currentNode.nextNodes.remove(move);
+            _truncatePath(_playedMoves.size());
+        }
 
-        updateMarks();
+        if (_batchLevel == 0)
+            updateMarks();
         switchCurrentPlayer();
+        _saveCheckpoint();
         return move;
     }
 
@@ -299,31 +355,147 @@ public class GoGame {
      * @return The real number of moves navigated.
      */
     public int navigate(int amount) {
-        int count = 0;
-
-        // Nombre positif
-        for (int i = 0; i < amount; i++) {
+        // Single steps don't need the checkpoints
+        if (amount == 1) {
+            _currentNode.ensureLoaded();
             int size = _currentNode.nextNodes.size();
             if (size == 0)
-                break;
-
+                return 0;
             int lastVariation = _currentNode.lastVariation;
-            GameNode move = _currentNode.nextNodes.get(lastVariation < 0 || lastVariation >= size ? 0 : lastVariation);
-            placeMove(move.x, move.y, move.color);
-            count++;
+            _replayNode(_currentNode.nextNodes.get(lastVariation < 0 || lastVariation >= size ? 0 : lastVariation));
+            return 1;
+        }
+        if (amount == -1) {
+            if (undo(false) == null)
+                return 0;
+            if (_currentNode.parentNode == null && _currentNode.x >= 0 && _currentNode.y >= 0)
+                board.set(_currentNode.x, _currentNode.y, _currentNode.color);
+            return 1;
         }
 
-        // Nombre négatif
-        for (int i = 0; i > amount; i--) {
-            if (_currentNode.parentNode == null)
+        int moveNumber = _playedMoves.size();
+        long target = Math.max(0L, Math.min((long) moveNumber + amount, Integer.MAX_VALUE));
+        return Math.abs(seek((int) target) - moveNumber);
+    }
+
+    /**
+     * Goes to the specified move number of the current variation (the moves following the current node
+     * are taken from the last selected variations, like {@link #navigate(int)}).
+     * The nearest board checkpoint is used, so at most {@link #CHECKPOINT_INTERVAL} moves are replayed
+     * when the target has already been visited.
+     *
+     * @return The move number reached, which is lower than the requested one if the variation is shorter.
+     */
+    public int seek(int moveNumber) {
+        moveNumber = Math.max(0, moveNumber);
+        GameNode target;
+        if (moveNumber <= _pathNodes.size()) {
+            target = (moveNumber == 0) ? _baseNode : _pathNodes.get(moveNumber - 1);
+        }
+        else {
+            // The visited variation always follows the last selected variations
+            int depth = _pathNodes.size();
+            target = (depth == 0) ? _baseNode : _pathNodes.get(depth - 1);
+            while (depth < moveNumber) {
+                target.ensureLoaded();
+                int size = target.nextNodes.size();
+                if (size == 0)
+                    break;
+                int lastVariation = target.lastVariation;
+                target = target.nextNodes.get(lastVariation < 0 || lastVariation >= size ? 0 : lastVariation);
+                depth++;
+            }
+        }
+        seek(target);
+        return _playedMoves.size();
+    }
+
+    /**
+     * Goes to the specified node of the game tree. The nearest board checkpoint is used, so at most
+     * {@link #CHECKPOINT_INTERVAL} moves are replayed when the target has already been visited.
+     *
+     * @throws IllegalArgumentException The node does not belong to the game tree.
+     */
+    public void seek(GameNode node) {
+        ArrayList<GameNode> targetPath = new ArrayList<>();
+        GameNode root = node;
+        while (root.parentNode != null) {
+            targetPath.add(root);
+            root = root.parentNode;
+        }
+        if (root != _baseNode)
+            throw new IllegalArgumentException("The node does not belong to the game tree");
+        Collections.reverse(targetPath);
+
+        beginBatch();
+        int targetDepth = targetPath.size();
+        int depth = _playedMoves.size();
+        int known = 0;
+        int pathSize = _pathNodes.size();
+        while (known < targetDepth && known < pathSize && _pathNodes.get(known) == targetPath.get(known))
+            known++;
+        int common = Math.min(known, depth);
+
+        // Either undo moves up to the last common node, or restore the nearest checkpoint before the target
+        int start = common;
+        int checkpointDepth = Math.min(known, targetDepth) / CHECKPOINT_INTERVAL * CHECKPOINT_INTERVAL;
+        int stepCost = (depth - common) + (targetDepth - common);
+        while (checkpointDepth >= 0 && (targetDepth - checkpointDepth) < stepCost) {
+            Checkpoint checkpoint = _getCheckpoint(checkpointDepth);
+            if (checkpoint != null) {
+                _restoreCheckpoint(checkpointDepth, checkpoint);
+                start = checkpointDepth;
                 break;
-            undo(false);
-            count++;
+            }
+            checkpointDepth -= CHECKPOINT_INTERVAL;
+        }
+        if (start == common) {
+            while (_playedMoves.size() > common)
+                undo(false);
         }
 
+        for (int i = start; i < targetDepth; i++)
+            _replayNode(targetPath.get(i));
+
         if (_currentNode.parentNode == null && _currentNode.x >= 0 && _currentNode.y >= 0)
             board.set(_currentNode.x, _currentNode.y, _currentNode.color);
-        return count;
+        endBatch();
+    }
+
+    /**
+     * Starts a sequence of moves during which the board marks are not updated, which
+     * makes navigation faster. Each call must be followed by a call to {@link #endBatch()}.
+     */
+    public void beginBatch() {
+        _batchLevel++;
+    }
+
+    /**
+     * Ends a sequence of moves started by {@link #beginBatch()}. The board marks are updated
+     * when the outermost sequence ends.
+     */
+    public void endBatch() {
+        if (_batchLevel > 0 && --_batchLevel == 0)
+            updateMarks();
+    }
+
+    /**
+     * Forgets the board checkpoints and the visited variation used by {@link #seek(GameNode)}.
+     * This must be called if the game tree, the stones set by nodes or the undo history are modified directly.
+     */
+    public void clearNavigationCache() {
+        _pathNodes.clear();
+        _pathMoves.clear();
+        _checkpoints.clear();
+
+        // The visited variation must start with the current one
+        GameNode node = _currentNode;
+        while (node != null && node.parentNode != null) {
+            _pathNodes.add(node);
+            node = node.parentNode;
+        }
+        Collections.reverse(_pathNodes);
+        _pathMoves.addAll(_playedMoves);
     }
 
 
@@ -374,6 +546,7 @@ public class GoGame {
     public void addStone(int x, int y, byte color) {
         _currentNode.setStone(x, y, color);
         board.placeMove(x, y, color, false);
+        _invalidatePosition();
     }
 
     /**
@@ -388,24 +561,59 @@ public class GoGame {
     }
 
     /**
-     * Rotates the board and the variations by 90° CCW
-     * (this doesn't rotate added stones and any other SGF property).
+     * Rotates the board and the variations by 90° CCW.
      */
     public void rotateCCW() {
-        board.rotateCCW();
-        _rotateMovesCCW_loop(getBaseNode());
-        updateMarks();
+        transform(BoardSymmetry.ROTATE_CCW);
     }
 
-    private void _rotateMovesCCW_loop(GameNode move) {
-        if (move.x >= 0 && move.y >= 0) {
-            byte temp = move.x;
-            move.x = move.y;
-            move.y = (byte) (_size - temp - 1);
+    /**
+     * Applies a symmetry to the whole game tree : moves, added stones and marks. When the colors are reversed,
+     * the color of the moves and stones are reversed too, but not the game informations.
+     * The current node stays the same.
+     */
+    public void transform(BoardSymmetry symmetry) {
+        // The board only contains the stones of the base node when the tree is modified
+        GameNode currentNode = _currentNode;
+        seek(_baseNode);
+        GameTreeWalker walker = new GameTreeWalker(_baseNode);
+        int event;
+        while ((event = walker.next()) != GameTreeWalker.END) {
+            if (event == GameTreeWalker.ENTER)
+                _transformNode(walker.getNode(), symmetry);
         }
 
-        for (GameNode nextMove : move.nextNodes)
-            _rotateMovesCCW_loop(nextMove);
+        GoBoard baseBoard = new TransformedBoard(board, symmetry).toBoard();
+        for (int x = 0; x < _size; x++) {
+            for (int y = 0; y < _size; y++)
+                board.set(x, y, baseBoard.getColor(x, y));
+        }
+        finalStatus = new TransformedBoard(finalStatus, symmetry).toBoard();
+        _currentPlayer = symmetry.getColor(_currentPlayer);
+        clearNavigationCache();
+        seek(currentNode);
+    }
+
+    private void _transformNode(GameNode node, BoardSymmetry symmetry) {
+        if (node.x >= 0 && node.y >= 0 && node.x < _size && node.y < _size) {
+            int point = symmetry.getPoint(node.x, node.y, _size);
+            node.x = (byte) (point % _size);
+            node.y = (byte) (point / _size);
+        }
+        node.color = symmetry.getColor(node.color);
+
+        // Stones and marks may be shared with copies of the tree, so they are replaced
+        if (node.setStones != null) {
+            for (int i = 0; i < node.setStones.size(); i++) {
+                LightCoords stone = node.setStones.get(i);
+                int point = symmetry.getPoint(stone.x, stone.y, _size);
+                node.setStones.set(i, new LightCoords(point % _size, point / _size, symmetry.getColor(stone.color)));
+            }
+        }
+        if (node.boardMarks != null) {
+            for (int i = 0; i < node.boardMarks.size(); i++)
+                node.boardMarks.set(i, symmetry.getMark(node.boardMarks.get(i), _size));
+        }
     }
 
     public void toggleDeadGroup(int x, int y) {
@@ -595,6 +803,7 @@ public class GoGame {
      */
     public void setBaseNode(GameNode baseNode) {
         clear();
+        baseNode.ensureLoaded();
         _baseNode = baseNode;
         _currentNode = _baseNode;
         _setRequestedStones();
@@ -619,6 +828,7 @@ public class GoGame {
      */
     public void setNextPlayer(byte color) {
         _currentPlayer = color;
+        _invalidatePosition();
     }
 
     /**
@@ -672,6 +882,7 @@ public class GoGame {
         _currentNode = _baseNode;
         _currentPlayer = GoBoard.BLACK;
         board.clear();
+        clearNavigationCache();
     }
 
     /**
@@ -752,6 +963,7 @@ public class GoGame {
      */
     protected void _addToTree(int x, int y, byte color, List<Coords> prisoners) {
         _currentNode = _currentNode.addNode(x, y, color);
+        _currentNode.ensureLoaded();
         GameNode parentNode = _currentNode.parentNode;
         if (parentNode != null)
             parentNode.lastVariation = (byte) Math.max(0, parentNode.nextNodes.indexOf(_currentNode));
@@ -766,14 +978,97 @@ public class GoGame {
         if (_currentNode.setStones == null || _currentNode.setStones.size() == 0)
             return;
 
-        ArrayList<LightCoords> removedList = new ArrayList<LightCoords>();
+        // The undo informations are filled directly : the move info has just been created by placeMove()
+        MoveInfo moveInfo = _playedMoves.empty() ? null : _playedMoves.peek();
+        if (moveInfo != null) {
+            if (moveInfo.removedStones == null)
+                moveInfo.removedStones = new ArrayList<LightCoords>(_currentNode.setStones.size());
+            else
+                moveInfo.removedStones.clear();
+        }
         for (LightCoords coords : _currentNode.setStones) {
-            byte prevColor = board.getColor(coords.x, coords.y);
-            removedList.add(new LightCoords(coords.x, coords.y, prevColor));
+            if (moveInfo != null)
+                moveInfo.removedStones.add(new LightCoords(coords.x, coords.y, board.getColor(coords.x, coords.y)));
             board.set(coords.x, coords.y, coords.color);
         }
-        if (!_playedMoves.empty())
-            _playedMoves.peek().setRemovedStones(removedList);
+    }
+
+
+    /**
+     * Saves the current node and its undo informations in the visited variation, and creates
+     * a checkpoint if needed. Called each time a move is placed.
+     */
+    private void _updatePath() {
+        int depth = _playedMoves.size();
+        if (_pathNodes.size() >= depth && _pathNodes.get(depth - 1) == _currentNode) {
+            _pathMoves.set(depth - 1, _playedMoves.peek());
+        }
+        else {
+            _truncatePath(depth - 1);
+            _pathNodes.add(_currentNode);
+            _pathMoves.add(_playedMoves.peek());
+        }
+        _saveCheckpoint();
+    }
+
+    /**
+     * Removes the nodes following the specified move number from the visited variation,
+     * with their checkpoints.
+     */
+    private void _truncatePath(int depth) {
+        for (int i = _pathNodes.size() - 1; i >= depth; i--) {
+            _pathNodes.remove(i);
+            _pathMoves.remove(i);
+        }
+        for (int i = _checkpoints.size() - 1; i > depth / CHECKPOINT_INTERVAL; i--)
+            _checkpoints.remove(i);
+    }
+
+    /**
+     * Removes the checkpoints of the current position and of the following moves, which are not valid anymore.
+     */
+    private void _invalidatePosition() {
+        int depth = _playedMoves.size();
+        _truncatePath(depth);
+        if (depth % CHECKPOINT_INTERVAL == 0 && depth / CHECKPOINT_INTERVAL < _checkpoints.size())
+            _checkpoints.set(depth / CHECKPOINT_INTERVAL, null);
+    }
+
+    private void _saveCheckpoint() {
+        int depth = _playedMoves.size();
+        if (depth % CHECKPOINT_INTERVAL != 0 || _getCheckpoint(depth) != null)
+            return;
+
+        int index = depth / CHECKPOINT_INTERVAL;
+        while (_checkpoints.size() <= index)
+            _checkpoints.add(null);
+        _checkpoints.set(index, new Checkpoint(board, _blackPrisoners, _whitePrisoners, _currentPlayer));
+    }
+
+    private Checkpoint _getCheckpoint(int depth) {
+        int index = depth / CHECKPOINT_INTERVAL;
+        return (index < _checkpoints.size()) ? _checkpoints.get(index) : null;
+    }
+
+    /**
+     * Sets the position saved in the specified checkpoint, which must belong to the visited variation.
+     */
+    private void _restoreCheckpoint(int depth, Checkpoint checkpoint) {
+        byte[] colors = board.getBoardArray();
+        System.arraycopy(checkpoint.colors, 0, colors, 0, colors.length);
+        if (checkpoint.ko != null)
+            board.setKoCoords(checkpoint.ko.x, checkpoint.ko.y);
+        else
+            board.setKoCoords(-1, -1);
+        _blackPrisoners = checkpoint.blackPrisoners;
+        _whitePrisoners = checkpoint.whitePrisoners;
+        _currentPlayer = checkpoint.currentPlayer;
+
+        if (_playedMoves.size() > depth)
+            _playedMoves.setSize(depth);
+        for (int i = _playedMoves.size(); i < depth; i++)
+            _playedMoves.push(_pathMoves.get(i));
+        _currentNode = (depth == 0) ? _baseNode : _pathNodes.get(depth - 1);
     }
 
 
@@ -801,8 +1096,10 @@ public class GoGame {
             index = (index == 0) ? size - 1 : index - 1;
 
         GameNode move = parentMove.nextNodes.get(index);
+        beginBatch();
         undo(false);
         placeMove(move.x, move.y, move.color);
+        endBatch();
     }
 
 
@@ -943,6 +1240,29 @@ public class GoGame {
     }
 
 
+    /**
+     * A copy of the board state at a given move of the visited variation.
+     */
+    private static final class Checkpoint {
+        public final byte[] colors;
+        public final Coords ko;
+        public final int blackPrisoners;
+        public final int whitePrisoners;
+        public final byte currentPlayer;
+
+        public Checkpoint(GoBoard board, int blackPrisoners, int whitePrisoners, byte currentPlayer) {
+            byte[] boardColors = board.getBoardArray();
+            colors = new byte[boardColors.length];
+            System.arraycopy(boardColors, 0, colors, 0, boardColors.length);
+            Coords koCoords = board.getKoCoords();
+            ko = (koCoords != null) ? new Coords(koCoords.x, koCoords.y) : null;
+            this.blackPrisoners = blackPrisoners;
+            this.whitePrisoners = whitePrisoners;
+            this.currentPlayer = currentPlayer;
+        }
+    }
+
+
     public static final class Result {
         public int whiteTerritory;
         public int blackTerritory;
@@ -0,0 +1,202 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Contains a recorded GTP session : every command sent to an engine, its response and the time it took.
+ * A session can be recorded with {@link RecordingGtpEngine} and played back with {@link ReplayGtpEngine}.
+ */
+public final class GtpSession {
+    private static final int _MAGIC = 0x47545053; // "GTPS"
+    private static final int _VERSION = 1;
+
+    private final ArrayList<Entry> _entries = new ArrayList<>();
+    private String _engineName = "";
+    private String _engineVersion = "";
+
+
+    public GtpSession() {
+    }
+
+    public GtpSession(String engineName, String engineVersion) {
+        setEngineInfo(engineName, engineVersion);
+    }
+
+
+    /**
+     * Adds a command at the end of the session.
+     *
+     * @param startNanos    The time at which the command was sent, relative to the start of the session.
+     * @param durationNanos The time the engine took to answer.
+     */
+    public synchronized void add(String command, String response, long startNanos, long durationNanos) {
+        _entries.add(new Entry(command, response, startNanos, durationNanos));
+    }
+
+    /**
+     * Returns the entry at the specified index.
+     */
+    public synchronized Entry get(int index) {
+        return _entries.get(index);
+    }
+
+    /**
+     * Returns the number of recorded commands.
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Returns a read-only copy of the recorded commands.
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(_entries));
+    }
+
+    /**
+     * Returns the total time spent by the engine to answer all commands, in nanoseconds.
+     */
+    public synchronized long getEngineTimeNanos() {
+        long total = 0;
+        for (Entry entry : _entries)
+            total += entry.durationNanos;
+        return total;
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    public String getEngineName() {
+        return _engineName;
+    }
+
+    public String getEngineVersion() {
+        return _engineVersion;
+    }
+
+    public void setEngineInfo(String engineName, String engineVersion) {
+        _engineName = (engineName == null) ? "" : engineName;
+        _engineVersion = (engineVersion == null) ? "" : engineVersion;
+    }
+
+
+    /**
+     * Saves this session in the specified stream.
+     *
+     * @throws IOException An error occurred during writing.
+     */
+    public synchronized void save(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(_MAGIC);
+        out.writeInt(_VERSION);
+        _writeString(out, _engineName);
+        _writeString(out, _engineVersion);
+        out.writeInt(_entries.size());
+        for (Entry entry : _entries) {
+            _writeString(out, entry.command);
+            _writeString(out, entry.response);
+            out.writeLong(entry.startNanos);
+            out.writeLong(entry.durationNanos);
+        }
+        out.flush();
+    }
+
+    /**
+     * Loads a session previously saved with {@link #save(OutputStream)}.
+     *
+     * @throws IOException An error occurred during reading, or the stream does not contain a GTP session.
+     */
+    public static GtpSession load(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != _MAGIC)
+            throw new IOException("The stream does not contain a GTP session");
+        int version = in.readInt();
+        if (version > _VERSION)
+            throw new IOException("Unsupported GTP session version (" + version + ")");
+
+        GtpSession session = new GtpSession(_readString(in), _readString(in));
+        int count = in.readInt();
+        session._entries.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            String command = _readString(in);
+            String response = _readString(in);
+            session._entries.add(new Entry(command, response, in.readLong(), in.readLong()));
+        }
+        return session;
+    }
+
+
+    // writeUTF() is limited to 64 KB, which is not enough for some responses (showboard, list_commands, ...)
+    private static void _writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String _readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+
+    /**
+     * A single GTP command with its response.
+     */
+    public static final class Entry {
+        public final String command;
+        /**
+         * The response of the engine (can be null if the engine failed to answer).
+         */
+        public final String response;
+        public final long startNanos;
+        public final long durationNanos;
+
+        public Entry(String command, String response, long startNanos, long durationNanos) {
+            this.command = command;
+            this.response = response;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "[GtpSession.Entry] " + command + " -> " + response + " (" + (durationNanos / 1000000) + " ms)";
+        }
+    }
+}
@@ -20,86 +20,265 @@ package lrstudios.games.ego.lib;
 
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import lrstudios.games.ego.lib.ui.GtpBoardActivity;
 
 
 /**
- * GTP commands will be sent to the specified {@link GtpEngine} from this thread.
+ * GTP commands will be sent to the specified {@link GtpEngine} from a single background thread.
+ * <p/>
+ * Requests are scheduled by priority (interactive requests like genmove run before background
+ * analysis), then in the order they were made. Only one request of each type can be pending :
+ * asking again for the same position returns the pending request, and asking for another position
+ * cancels the pending one. Results are delivered through the notify {@link Handler}.
  */
-public class GtpThread extends HandlerThread implements Handler.Callback {
+public class GtpThread {
     private static final String TAG = "GtpThread";
-    private static final int
-            _MSG_PLAY = 1,
-            _MSG_FINAL_SCORE = 2;
 
+    public static final int
+            PRIORITY_INTERACTIVE = 0,
+            PRIORITY_BACKGROUND = 10;
+
+    /**
+     * The files used to save the current game, which can be restored with {@link GameJournal#restore(File, File)}.
+     * Older versions only saved the game in SAVE_LEGACY_FILENAME.
+     */
+    public static final String
+            SAVE_SNAPSHOT_FILENAME = "gtp_save.bin",
+            SAVE_JOURNAL_FILENAME = "gtp_save.journal",
+            SAVE_LEGACY_FILENAME = "gtp_save.sgf";
+
+    private static final Integer
+            _TYPE_PLAY = 1,
+            _TYPE_FINAL_SCORE = 2,
+            _TYPE_CLOSE_JOURNAL = 3;
+
+    private final HashMap<Object, Request> _pending = new HashMap<>();
+    private final ThreadPoolExecutor _executor;
     private Context _appContext;
-    private Handler _handler;
     private Handler _notifyHandler;
     private GtpEngine _engine;
+    private GameJournal _journal;
+    private long _sequence;
 
 
     public GtpThread(GtpEngine engine, Handler notifyHandler, Context applicationContext) {
-        super("GtpThread");
         _engine = engine;
         _notifyHandler = notifyHandler;
         _appContext = applicationContext;
-    }
+        _journal = new GameJournal(
+                _appContext.getFileStreamPath(SAVE_SNAPSHOT_FILENAME),
+                _appContext.getFileStreamPath(SAVE_JOURNAL_FILENAME));
 
-    @Override
-    protected void onLooperPrepared() {
-        super.onLooperPrepared();
-        synchronized (this) {
-            _handler = new Handler(getLooper(), this);
-            notifyAll();
-        }
+        // A single thread is used because GTP engines can only handle one command at a time
+        _executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "GtpThread");
+                    }
+                });
     }
 
-    public void playMove() {
-        synchronized (this) {
-            while (_handler == null) {
-                try {
-                    wait();
-                }
-                catch (InterruptedException ignored) {
+
+    /**
+     * Asks the engine to play its next move. {@link GtpBoardActivity#MSG_GTP_MOVE} is sent to the notify
+     * handler once the move has been played.
+     */
+    public Request playMove() {
+        return _submit(new Request(_TYPE_PLAY, PRIORITY_INTERACTIVE) {
+            @Override
+            protected void execute() {
+                _engine.genMove();
+
+                if (!_engine.getGame().isFinished()) {
+                    // Journals the moves after each bot move to be able to restore the game
+                    try {
+                        _journal.record(_engine.getGame());
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
                 }
+
+                _notify(GtpBoardActivity.MSG_GTP_MOVE, null);
             }
-        }
-        _handler.sendMessage(_handler.obtainMessage(_MSG_PLAY));
+        });
     }
 
-    public void getFinalScore() {
-        _handler.sendMessage(_handler.obtainMessage(_MSG_FINAL_SCORE));
+    /**
+     * Asks the engine to compute the final status of the stones and the final score.
+     * {@link GtpBoardActivity#MSG_FINAL_SCORE} is sent to the notify handler with the result.
+     */
+    public Request getFinalScore() {
+        return _submit(new Request(_TYPE_FINAL_SCORE, PRIORITY_INTERACTIVE) {
+            @Override
+            protected void execute() {
+                _engine.askFinalStatus();
+                GoGameResult result = _engine.computeFinalScore();
+                _notify(GtpBoardActivity.MSG_FINAL_SCORE, result);
+            }
+        });
     }
 
-    @Override
-    public boolean handleMessage(Message msg) {
-        if (msg.what == _MSG_PLAY) {
-            _engine.genMove();
+    /**
+     * Sends any GTP command to the engine. The response is sent to the notify handler in a message
+     * with the specified "what" value.
+     *
+     * @param priority One of the PRIORITY_* constants (lower values run first).
+     */
+    public Request sendCommand(final String command, int priority, final int notifyWhat) {
+        return _submit(new Request(command, priority) {
+            @Override
+            protected void execute() {
+                _notify(notifyWhat, _engine.sendGtpCommand(command));
+            }
+        });
+    }
 
-            if (!_engine.getGame().isFinished()) {
-                // Saves an SGF file after each bot move to be able to restore the game
+
+    /**
+     * Cancels all pending requests and stops the thread once the current request is done.
+     */
+    public void quit() {
+        synchronized (this) {
+            for (Request request : _pending.values())
+                request._cancelled = true;
+            _pending.clear();
+        }
+        // The current command is not interrupted, because the engine would not be able to answer the next ones
+        _executor.getQueue().clear();
+        _submit(new Request(_TYPE_CLOSE_JOURNAL, PRIORITY_BACKGROUND) {
+            @Override
+            protected void execute() {
                 try {
-                    _engine.getGame().saveSgf(_appContext.openFileOutput("gtp_save.sgf", Context.MODE_PRIVATE));
+                    _journal.close();
                 }
-                catch (Exception e) {
+                catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+        });
+        _executor.shutdown();
+    }
 
-            if (_notifyHandler != null)
-                _notifyHandler.sendMessage(_notifyHandler.obtainMessage(GtpBoardActivity.MSG_GTP_MOVE));
-            return true;
+    /**
+     * Returns true until the thread has stopped after a call to {@link #quit()}.
+     */
+    public boolean isAlive() {
+        return !_executor.isTerminated();
+    }
+
+    /**
+     * Waits for the thread to stop after a call to {@link #quit()}.
+     */
+    public void join() throws InterruptedException {
+        while (!_executor.awaitTermination(1, TimeUnit.SECONDS))
+            Log.v(TAG, "Waiting for the current GTP command to finish...");
+    }
+
+
+    private synchronized Request _submit(Request request) {
+        // The position is the current node : it is only modified from the GTP thread or when no request is pending
+        GoGame game = _engine.getGame();
+        request._position = (game != null) ? game.getCurrentNode() : null;
+        request._sequence = _sequence++;
+
+        Request pending = _pending.get(request._type);
+        if (pending != null) {
+            if (pending._position == request._position && pending._priority <= request._priority)
+                return pending;
+            pending.cancel();
+        }
+
+        try {
+            _pending.put(request._type, request);
+            _executor.execute(request);
+        }
+        catch (RejectedExecutionException e) {
+            Log.w(TAG, "The GTP thread has been stopped, the request is ignored");
+            _pending.remove(request._type);
+            request._cancelled = true;
+        }
+        return request;
+    }
+
+    private void _notify(int what, Object obj) {
+        if (_notifyHandler != null)
+            _notifyHandler.sendMessage(_notifyHandler.obtainMessage(what, obj));
+    }
+
+
+    /**
+     * A request waiting to be sent to the engine.
+     */
+    public abstract class Request implements Runnable, Comparable<Request> {
+        private final Object _type;
+        private final int _priority;
+        private Object _position;
+        private long _sequence;
+        private boolean _started;
+        private boolean _cancelled;
+
+
+        private Request(Object type, int priority) {
+            _type = type;
+            _priority = priority;
         }
-        else if (msg.what == _MSG_FINAL_SCORE) {
-            _engine.askFinalStatus();
-            GoGameResult result = _engine.computeFinalScore();
-            if (_notifyHandler != null)
-                _notifyHandler.sendMessage(_notifyHandler.obtainMessage(GtpBoardActivity.MSG_FINAL_SCORE, result));
+
+        protected abstract void execute();
+
+
+        /**
+         * Cancels this request if it has not been started yet.
+         *
+         * @return false if the request has already been started or cancelled.
+         */
+        public boolean cancel() {
+            synchronized (GtpThread.this) {
+                if (_started || _cancelled)
+                    return false;
+                _cancelled = true;
+                if (_pending.get(_type) == this)
+                    _pending.remove(_type);
+            }
+            _executor.remove(this);
             return true;
         }
-        return false;
+
+        public boolean isCancelled() {
+            synchronized (GtpThread.this) {
+                return _cancelled;
+            }
+        }
+
+        @Override
+        public final void run() {
+            synchronized (GtpThread.this) {
+                if (_cancelled)
+                    return;
+                _started = true;
+                if (_pending.get(_type) == this)
+                    _pending.remove(_type);
+            }
+            execute();
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if (_priority != another._priority)
+                return _priority < another._priority ? -1 : 1;
+            return _sequence < another._sequence ? -1 : (_sequence == another._sequence ? 0 : 1);
+        }
     }
-}
\ No newline at end of file
+}
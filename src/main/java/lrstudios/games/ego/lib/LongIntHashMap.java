@@ -0,0 +1,102 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.util.Arrays;
+
+
+/**
+ * A hash map from long keys to non-negative int values, using open addressing (linear probing) on
+ * primitive arrays, so millions of entries can be stored without boxing.
+ */
+final class LongIntHashMap {
+    static final int NO_VALUE = -1;
+
+    private long[] _keys;
+    private int[] _values;
+    private int _mask;
+    private int _size;
+
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        _allocate(capacity);
+    }
+
+
+    int size() {
+        return _size;
+    }
+
+    /**
+     * Returns the value of the specified key, or NO_VALUE.
+     */
+    int get(long key) {
+        int slot = _slot(key);
+        while (_values[slot] != NO_VALUE) {
+            if (_keys[slot] == key)
+                return _values[slot];
+            slot = (slot + 1) & _mask;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Sets the value of the specified key (the value must not be negative).
+     */
+    void put(long key, int value) {
+        int slot = _slot(key);
+        while (_values[slot] != NO_VALUE) {
+            if (_keys[slot] == key) {
+                _values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & _mask;
+        }
+        _keys[slot] = key;
+        _values[slot] = value;
+        if (++_size * 2 > _keys.length)
+            _grow();
+    }
+
+    private int _slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & _mask;
+    }
+
+    private void _allocate(int capacity) {
+        _keys = new long[capacity];
+        _values = new int[capacity];
+        Arrays.fill(_values, NO_VALUE);
+        _mask = capacity - 1;
+    }
+
+    private void _grow() {
+        long[] keys = _keys;
+        int[] values = _values;
+        _allocate(keys.length * 2);
+        _size = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != NO_VALUE)
+                put(keys[i], values[i]);
+        }
+    }
+}
@@ -40,9 +40,6 @@ public final class LrfParser {
     private int _lrf_bits;
     private Rect _lrf_bounds;
 
-    private BitWriter _loop_writer;
-    private GoGame _loop_game;
-    private IOException _loop_exception;
 
 
     public LrfParser() {
@@ -71,32 +68,38 @@ public final class LrfParser {
             int currentPos = 0;
 
             offsetStack.push(0);
-            while (!offsetStack.empty()) {
-                if (reader.read()) // COMMAND_PLAY_MOVE
-                {
-                    final Coords coords = GoBoard.decodeCoords((int) reader.read(bits), shiftY);
-                    game.placeMove(coords.x + bounds.left, coords.y + bounds.top);
-                    currentPos++;
-                }
-                else {
-                    switch ((int) reader.read(2)) {
-                        case 1: // COMMAND_SET_RESULT
-                            game.setMoveValue((byte) reader.read(7));
-                            break;
-                        case 2: // COMMAND_NEW_NODE
-                            offsetStack.push(currentPos);
-                            break;
-                        case 3: // COMMAND_END_NODE
-                            int nextPos = offsetStack.pop();
-                            game.navigate(nextPos - currentPos);
-                            currentPos = nextPos;
-                            break;
-                        default: // special command
-                            System.out.println("Special command???");
-                            break;
+            game.beginBatch();
+            try {
+                while (!offsetStack.empty()) {
+                    if (reader.read()) // COMMAND_PLAY_MOVE
+                    {
+                        final Coords coords = GoBoard.decodeCoords((int) reader.read(bits), shiftY);
+                        game.placeMove(coords.x + bounds.left, coords.y + bounds.top);
+                        currentPos++;
+                    }
+                    else {
+                        switch ((int) reader.read(2)) {
+                            case 1: // COMMAND_SET_RESULT
+                                game.setMoveValue((byte) reader.read(7));
+                                break;
+                            case 2: // COMMAND_NEW_NODE
+                                offsetStack.push(currentPos);
+                                break;
+                            case 3: // COMMAND_END_NODE
+                                int nextPos = offsetStack.pop();
+                                game.navigate(nextPos - currentPos);
+                                currentPos = nextPos;
+                                break;
+                            default: // special command
+                                System.out.println("Special command???");
+                                break;
+                        }
                     }
                 }
             }
+            finally {
+                game.endBatch();
+            }
         }
 
         try {
@@ -118,18 +121,6 @@ public final class LrfParser {
         return game;
     }
 
-    private Runnable save_loop = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                _save_loop(_loop_game.getBaseNode());
-            }
-            catch (IOException e) {
-                _loop_exception = e;
-            }
-        }
-    };
-
     public void save(GoGame game, OutputStream stream) throws IOException {
         BitWriter writer = new BitWriter(stream);
         GoBoard board = game.board;
@@ -172,20 +163,7 @@ public final class LrfParser {
             _lrf_bits = _getRequiredBits(_lrf_bounds);
             writer.write(GoBoard.encodeCoords(_lrf_bounds.left, _lrf_bounds.top, game.board.getSize()), 9);
             writer.write(GoBoard.encodeCoords(_lrf_bounds.right, _lrf_bounds.bottom, game.board.getSize()), 9);
-            _loop_writer = writer;
-            _loop_game = game;
-
-            // Call the recursive function from another thread to have a larger stack size
-            // (Android stack size is limited to 8KB, which throws a StackOverflowError on large trees).
-            Thread thread = new Thread(new ThreadGroup("ANDROIDSUCKS"), save_loop, "LrfParser", 256 * 1024);
-            thread.start();
-            try {
-                thread.join();
-            }
-            catch (InterruptedException ignored) {
-            }
-            if (_loop_exception != null)
-                throw _loop_exception;
+            _saveTree(writer, game.getBaseNode());
         }
         else {
             writer.write(false);
@@ -202,36 +180,36 @@ public final class LrfParser {
 
 
     /**
-     * Recursive function to convert the current game tree in LRF format.
+     * Converts the specified game tree in LRF format.
      */
-    private void _save_loop(GameNode move) throws IOException {
-        int moveCount = move.nextNodes.size();
-
-        // In LRF format, we assume that black plays first
-        if (move.color != GoBoard.EMPTY) {
-            _loop_writer.write(true); // bit 1 = COMMAND_PLAY_MOVE
-            _loop_writer.write(GoBoard.encodeCoords(move.x - _lrf_bounds.left, move.y - _lrf_bounds.top,
-                    _lrf_bounds.right - _lrf_bounds.left + 1), _lrf_bits);
-
-            if (moveCount == 0) {
-                _loop_writer.write(false);
-                _loop_writer.write(1, 2); // bits 01 = COMMAND_SET_RESULT
-                _loop_writer.write((move.value < 0) ? 0 : move.value, 7);
-                _loop_writer.write(false);
-                _loop_writer.write(3, 2); // bits 11 = COMMAND_END_NODE
-            }
-        }
+    private void _saveTree(BitWriter writer, GameNode baseNode) throws IOException {
+        GameTreeWalker walker = new GameTreeWalker(baseNode);
+        int event;
+        while ((event = walker.next()) != GameTreeWalker.END) {
+            if (event != GameTreeWalker.ENTER)
+                continue;
 
-        int count = 0;
-        for (GameNode nextMove : move.nextNodes) {
             // Create new branches for all nodes except the last one
-            if (count < moveCount - 1) {
-                _loop_writer.write(false);
-                _loop_writer.write(2, 2); // bits 010 = COMMAND_NEW_NODE
+            if (walker.getIndex() < walker.getSiblingCount() - 1) {
+                writer.write(false);
+                writer.write(2, 2); // bits 010 = COMMAND_NEW_NODE
             }
 
-            _save_loop(nextMove);
-            count++;
+            // In LRF format, we assume that black plays first
+            GameNode move = walker.getNode();
+            if (move.color != GoBoard.EMPTY) {
+                writer.write(true); // bit 1 = COMMAND_PLAY_MOVE
+                writer.write(GoBoard.encodeCoords(move.x - _lrf_bounds.left, move.y - _lrf_bounds.top,
+                        _lrf_bounds.right - _lrf_bounds.left + 1), _lrf_bits);
+
+                if (move.nextNodes.size() == 0) {
+                    writer.write(false);
+                    writer.write(1, 2); // bits 01 = COMMAND_SET_RESULT
+                    writer.write((move.value < 0) ? 0 : move.value, 7);
+                    writer.write(false);
+                    writer.write(3, 2); // bits 11 = COMMAND_END_NODE
+                }
+            }
         }
     }
 
@@ -261,6 +239,7 @@ public final class LrfParser {
 
         while (!stack.empty()) {
             move = stack.pop();
+            move.ensureLoaded();
             if (move.x >= 0 && move.y >= 0) {
                 if (bounds.left > move.x) bounds.left = move.x;
                 if (bounds.top > move.y) bounds.top = move.y;
@@ -0,0 +1,660 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Stack;
+
+
+/**
+ * A read-only library of variation trees stored in a file which is memory-mapped, so the trees can be
+ * browsed without being loaded in the Java heap. Files are created with a {@link Writer}.
+ * <p/>
+ * File layout : a header, the nodes (fixed-width records, in pre-order for each game), the data section
+ * (setup stones, marks and comments) and the index of the root node of each game. Both sections are mapped
+ * in chunks, because a single mapping is limited to 2 GB : a data record never crosses a chunk boundary.
+ * <p/>
+ * All reads are absolute, so a tree can be used by several threads at the same time.
+ */
+public final class MappedGameTree {
+    public static final int MAGIC = 0x45474D54; // "EGMT"
+    public static final int NO_NODE = -1;
+
+    private static final int _VERSION = 1;
+    private static final int _HEADER_SIZE = 64;
+    private static final int _RECORD_SIZE = 32;
+    private static final int _CHUNK_SHIFT = 26;
+    private static final int _CHUNK_SIZE = 1 << _CHUNK_SHIFT;
+    private static final int _CHUNK_MASK = _CHUNK_SIZE - 1;
+    private static final int _STONE_SIZE = 3;
+    private static final int _MARK_SIZE = 5;
+    private static final int _DATA_HEADER_SIZE = 8;
+
+    // Node record offsets
+    private static final int
+            _X = 0,
+            _Y = 1,
+            _COLOR = 2,
+            _VALUE = 3,
+            _LAST_VARIATION = 4,
+            _PARENT = 8,
+            _FIRST_CHILD = 12,
+            _NEXT_SIBLING = 16,
+            _GAME = 20,
+            _DATA = 24;
+
+    private final int _nodeCount;
+    private final int _gameCount;
+    private final ByteBuffer[] _nodeChunks;
+    private final ByteBuffer[] _dataChunks;
+    private final ByteBuffer _roots;
+
+
+    /**
+     * Maps the specified file. The mappings stay valid until they are garbage collected.
+     */
+    public MappedGameTree(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("The file is too short");
+            }
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("This is not a game tree library");
+            if (header.getInt(4) != _VERSION)
+                throw new IOException("Unsupported game tree library version : " + header.getInt(4));
+
+            _nodeCount = header.getInt(8);
+            _gameCount = header.getInt(12);
+            long dataOffset = header.getLong(16);
+            long dataLength = header.getLong(24);
+            long rootsOffset = header.getLong(32);
+            if (rootsOffset + (long) _gameCount * 4 > channel.size())
+                throw new IOException("The file is truncated");
+
+            _nodeChunks = _map(channel, _HEADER_SIZE, (long) _nodeCount * _RECORD_SIZE);
+            _dataChunks = _map(channel, dataOffset, dataLength);
+            _roots = channel.map(FileChannel.MapMode.READ_ONLY, rootsOffset, (long) _gameCount * 4);
+        }
+        finally {
+            Utils.closeObject(raf);
+        }
+    }
+
+    private static ByteBuffer[] _map(FileChannel channel, long offset, long length) throws IOException {
+        int count = (int) ((length + _CHUNK_SIZE - 1) >>> _CHUNK_SHIFT);
+        ByteBuffer[] chunks = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << _CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(_CHUNK_SIZE, length - start));
+        }
+        return chunks;
+    }
+
+
+    public int getNodeCount() {
+        return _nodeCount;
+    }
+
+    public int getGameCount() {
+        return _gameCount;
+    }
+
+    /**
+     * Returns the index of the root node of the specified game.
+     */
+    public int getRoot(int game) {
+        return _roots.getInt(game * 4);
+    }
+
+    private ByteBuffer _chunk(int node) {
+        return _nodeChunks[(int) (((long) node * _RECORD_SIZE) >>> _CHUNK_SHIFT)];
+    }
+
+    private static int _offset(int node) {
+        return (int) (((long) node * _RECORD_SIZE) & _CHUNK_MASK);
+    }
+
+    public byte getX(int node) {
+        return _chunk(node).get(_offset(node) + _X);
+    }
+
+    public byte getY(int node) {
+        return _chunk(node).get(_offset(node) + _Y);
+    }
+
+    public byte getColor(int node) {
+        return _chunk(node).get(_offset(node) + _COLOR);
+    }
+
+    /**
+     * Returns the move value, between 0 (lower) and 100 (better), or -1 if not used.
+     */
+    public byte getValue(int node) {
+        return _chunk(node).get(_offset(node) + _VALUE);
+    }
+
+    public byte getLastVariation(int node) {
+        return _chunk(node).get(_offset(node) + _LAST_VARIATION);
+    }
+
+    public int getParent(int node) {
+        return _chunk(node).getInt(_offset(node) + _PARENT);
+    }
+
+    public int getFirstChild(int node) {
+        return _chunk(node).getInt(_offset(node) + _FIRST_CHILD);
+    }
+
+    public int getNextSibling(int node) {
+        return _chunk(node).getInt(_offset(node) + _NEXT_SIBLING);
+    }
+
+    /**
+     * Returns the index of the game which contains the specified node.
+     */
+    public int getGame(int node) {
+        return _chunk(node).getInt(_offset(node) + _GAME);
+    }
+
+    public int getChildCount(int node) {
+        int count = 0;
+        for (int child = getFirstChild(node); child != NO_NODE; child = getNextSibling(child))
+            count++;
+        return count;
+    }
+
+    /**
+     * Returns the child at the specified position, or NO_NODE if it doesn't exist.
+     */
+    public int getChild(int node, int position) {
+        int child = getFirstChild(node);
+        while (child != NO_NODE && position-- > 0)
+            child = getNextSibling(child);
+        return child;
+    }
+
+
+    private long _getDataOffset(int node) {
+        return _chunk(node).getLong(_offset(node) + _DATA);
+    }
+
+    private ByteBuffer _dataChunk(long offset) {
+        return _dataChunks[(int) (offset >>> _CHUNK_SHIFT)];
+    }
+
+    public int getStoneCount(int node) {
+        long offset = _getDataOffset(node);
+        return (offset < 0) ? 0 : _dataChunk(offset).getShort((int) (offset & _CHUNK_MASK)) & 0xFFFF;
+    }
+
+    public int getMarkCount(int node) {
+        long offset = _getDataOffset(node);
+        return (offset < 0) ? 0 : _dataChunk(offset).getShort((int) (offset & _CHUNK_MASK) + 2) & 0xFFFF;
+    }
+
+    /**
+     * Returns a new list of the stones set by the specified node (or null if there are none).
+     */
+    public ArrayList<LightCoords> getStones(int node) {
+        long offset = _getDataOffset(node);
+        if (offset < 0)
+            return null;
+        ByteBuffer chunk = _dataChunk(offset);
+        int pos = (int) (offset & _CHUNK_MASK);
+        int count = chunk.getShort(pos) & 0xFFFF;
+        if (count == 0)
+            return null;
+
+        ArrayList<LightCoords> stones = new ArrayList<>(count);
+        pos += _DATA_HEADER_SIZE;
+        for (int i = 0; i < count; i++, pos += _STONE_SIZE)
+            stones.add(new LightCoords(chunk.get(pos), chunk.get(pos + 1), chunk.get(pos + 2)));
+        return stones;
+    }
+
+    /**
+     * Returns a new list of the marks of the specified node (or null if there are none).
+     */
+    public ArrayList<BoardMark> getMarks(int node) {
+        long offset = _getDataOffset(node);
+        if (offset < 0)
+            return null;
+        ByteBuffer chunk = _dataChunk(offset);
+        int pos = (int) (offset & _CHUNK_MASK);
+        int stoneCount = chunk.getShort(pos) & 0xFFFF;
+        int count = chunk.getShort(pos + 2) & 0xFFFF;
+        if (count == 0)
+            return null;
+
+        ArrayList<BoardMark> marks = new ArrayList<>(count);
+        pos += _DATA_HEADER_SIZE + stoneCount * _STONE_SIZE;
+        for (int i = 0; i < count; i++, pos += _MARK_SIZE) {
+            byte type = chunk.get(pos);
+            if (type == BoardMark.MARK_LABEL)
+                marks.add(new BoardLabelMark(chunk.get(pos + 1), chunk.get(pos + 2), chunk.getChar(pos + 3)));
+            else
+                marks.add(new BoardMark(chunk.get(pos + 1), chunk.get(pos + 2), type));
+        }
+        return marks;
+    }
+
+    /**
+     * Returns a copy of the UTF-8 comment of the specified node (or null if there is none).
+     */
+    public byte[] getCommentBytes(int node) {
+        long offset = _getDataOffset(node);
+        if (offset < 0)
+            return null;
+        ByteBuffer chunk = _dataChunk(offset);
+        int pos = (int) (offset & _CHUNK_MASK);
+        int length = chunk.getInt(pos + 4);
+        if (length == 0)
+            return null;
+
+        pos += _DATA_HEADER_SIZE + (chunk.getShort(pos) & 0xFFFF) * _STONE_SIZE + (chunk.getShort(pos + 2) & 0xFFFF) * _MARK_SIZE;
+        byte[] comment = new byte[length];
+        for (int i = 0; i < length; i++)
+            comment[i] = chunk.get(pos + i);
+        return comment;
+    }
+
+    /**
+     * Gets the comment of the specified node (never null).
+     */
+    public String getComment(int node) {
+        byte[] comment = getCommentBytes(node);
+        if (comment == null)
+            return "";
+        try {
+            return new String(comment, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ignored) {
+            return "[Error]";
+        }
+    }
+
+
+    /**
+     * Creates a regular tree from the specified node and all of its variations.
+     * The returned node has no parent.
+     */
+    public GameNode toGameNode(int node) {
+        GameNode root = _createGameNode(node);
+        Stack<GameNode> nodes = new Stack<>();
+        Stack<Integer> indexes = new Stack<>();
+        nodes.push(root);
+        indexes.push(node);
+        while (!nodes.empty()) {
+            GameNode gameNode = nodes.pop();
+            int current = indexes.pop();
+            for (int child = getFirstChild(current); child != NO_NODE; child = getNextSibling(child)) {
+                GameNode childNode = _createGameNode(child);
+                gameNode.forceAddMove(childNode);
+                nodes.push(childNode);
+                indexes.push(child);
+            }
+        }
+        return root;
+    }
+
+    private GameNode _createGameNode(int node) {
+        GameNode gameNode = new GameNode(getX(node), getY(node), getColor(node));
+        gameNode.value = getValue(node);
+        gameNode.lastVariation = getLastVariation(node);
+        gameNode.setStones = getStones(node);
+        gameNode.boardMarks = getMarks(node);
+        gameNode.setCommentBytes(getCommentBytes(node));
+        return gameNode;
+    }
+
+
+    /**
+     * Returns a new cursor placed on the root node of the specified game.
+     */
+    public Cursor newCursor(int game) {
+        return new Cursor(getRoot(game));
+    }
+
+
+    /**
+     * A cursor which reads the nodes directly from the mapped file.
+     */
+    public final class Cursor implements GameTreeCursor {
+        private int _index;
+
+
+        private Cursor(int index) {
+            _index = index;
+        }
+
+
+        public MappedGameTree getTree() {
+            return MappedGameTree.this;
+        }
+
+        @Override
+        public int getIndex() {
+            return _index;
+        }
+
+        @Override
+        public void moveTo(int index) {
+            _index = index;
+        }
+
+        @Override
+        public boolean gotoParent() {
+            return _moveIfValid(getParent(_index));
+        }
+
+        @Override
+        public boolean gotoFirstChild() {
+            return _moveIfValid(getFirstChild(_index));
+        }
+
+        @Override
+        public boolean gotoNextSibling() {
+            return _moveIfValid(getNextSibling(_index));
+        }
+
+        @Override
+        public boolean gotoChild(int position) {
+            return _moveIfValid(getChild(_index, position));
+        }
+
+        private boolean _moveIfValid(int index) {
+            if (index == NO_NODE)
+                return false;
+            _index = index;
+            return true;
+        }
+
+        @Override
+        public byte getX() {
+            return MappedGameTree.this.getX(_index);
+        }
+
+        @Override
+        public byte getY() {
+            return MappedGameTree.this.getY(_index);
+        }
+
+        @Override
+        public byte getColor() {
+            return MappedGameTree.this.getColor(_index);
+        }
+
+        @Override
+        public byte getValue() {
+            return MappedGameTree.this.getValue(_index);
+        }
+
+        @Override
+        public byte getLastVariation() {
+            return MappedGameTree.this.getLastVariation(_index);
+        }
+
+        @Override
+        public boolean isRoot() {
+            return getParent(_index) == NO_NODE;
+        }
+
+        @Override
+        public boolean hasChildren() {
+            return getFirstChild(_index) != NO_NODE;
+        }
+
+        @Override
+        public int getChildCount() {
+            return MappedGameTree.this.getChildCount(_index);
+        }
+
+        @Override
+        public String getComment() {
+            return MappedGameTree.this.getComment(_index);
+        }
+
+        @Override
+        public ArrayList<LightCoords> getStones() {
+            return MappedGameTree.this.getStones(_index);
+        }
+
+        @Override
+        public ArrayList<BoardMark> getMarks() {
+            return MappedGameTree.this.getMarks(_index);
+        }
+
+        @Override
+        public GameNode toGameNode() {
+            return MappedGameTree.this.toGameNode(_index);
+        }
+    }
+
+
+    /**
+     * Writes a game tree library, one game at a time, so the whole library never has to be in memory.
+     * The data section is written to a temporary file, which is appended to the library by {@link #close()}.
+     */
+    public static final class Writer {
+        private final File _file;
+        private final File _dataFile;
+        private DataOutputStream _nodes;
+        private DataOutputStream _data;
+        private DataOutputStream _roots;
+        private final ByteArrayOutputStream _rootsBuffer = new ByteArrayOutputStream();
+        private int _nodeCount;
+        private int _gameCount;
+        private long _dataSize;
+
+        // Pre-order state of the game being written
+        private GameNode[] _order = new GameNode[64];
+        private int[] _parents = new int[64];
+        private int[] _nextSiblings = new int[64];
+
+
+        public Writer(File file) throws IOException {
+            _file = file;
+            _dataFile = new File(file.getPath() + ".data.tmp");
+            _nodes = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            _nodes.write(new byte[_HEADER_SIZE]);
+            _data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_dataFile), 65536));
+            _roots = new DataOutputStream(_rootsBuffer);
+        }
+
+
+        public int getGameCount() {
+            return _gameCount;
+        }
+
+        public int getNodeCount() {
+            return _nodeCount;
+        }
+
+        /**
+         * Appends the specified tree to the library, and returns the index of the game.
+         */
+        public int addGame(GameNode baseNode) throws IOException {
+            // Number the nodes in pre-order
+            int count = 0;
+            Stack<GameNode> stack = new Stack<>();
+            Stack<Integer> parentStack = new Stack<>();
+            stack.push(baseNode);
+            parentStack.push(NO_NODE);
+            while (!stack.empty()) {
+                GameNode node = stack.pop();
+                if (count == _order.length) {
+                    _order = Arrays.copyOf(_order, count * 2);
+                    _parents = Arrays.copyOf(_parents, count * 2);
+                    _nextSiblings = Arrays.copyOf(_nextSiblings, count * 2);
+                }
+                node.ensureLoaded();
+                _order[count] = node;
+                _parents[count] = parentStack.pop();
+                _nextSiblings[count] = NO_NODE;
+                for (int i = node.nextNodes.size() - 1; i >= 0; i--) {
+                    stack.push(node.nextNodes.get(i));
+                    parentStack.push(count);
+                }
+                count++;
+            }
+            if ((long) _nodeCount + count > Integer.MAX_VALUE)
+                throw new IOException("Too many nodes in the library");
+
+            // Children of a node are numbered in order, so each child is the next sibling of the previous one
+            int[] lastChild = new int[count];
+            Arrays.fill(lastChild, NO_NODE);
+            for (int i = 1; i < count; i++) {
+                int parent = _parents[i];
+                if (lastChild[parent] != NO_NODE)
+                    _nextSiblings[lastChild[parent]] = i;
+                lastChild[parent] = i;
+            }
+
+            int base = _nodeCount;
+            for (int i = 0; i < count; i++) {
+                GameNode node = _order[i];
+                _order[i] = null;
+                boolean hasChildren = node.nextNodes.size() > 0;
+                _nodes.writeByte(node.x);
+                _nodes.writeByte(node.y);
+                _nodes.writeByte(node.color);
+                _nodes.writeByte(node.value);
+                _nodes.writeByte(node.lastVariation);
+                _nodes.writeByte(0);
+                _nodes.writeShort(0);
+                _nodes.writeInt(_parents[i] == NO_NODE ? NO_NODE : base + _parents[i]);
+                _nodes.writeInt(hasChildren ? base + i + 1 : NO_NODE);
+                _nodes.writeInt(_nextSiblings[i] == NO_NODE ? NO_NODE : base + _nextSiblings[i]);
+                _nodes.writeInt(_gameCount);
+                _nodes.writeLong(_writeData(node));
+            }
+            _nodeCount += count;
+            _roots.writeInt(base);
+            return _gameCount++;
+        }
+
+        private long _writeData(GameNode node) throws IOException {
+            int stoneCount = (node.setStones == null) ? 0 : node.setStones.size();
+            int markCount = (node.boardMarks == null) ? 0 : node.boardMarks.size();
+            byte[] comment = node.getCommentBytes();
+            int commentLength = (comment == null) ? 0 : comment.length;
+            if (stoneCount == 0 && markCount == 0 && commentLength == 0)
+                return -1;
+
+            long size = _DATA_HEADER_SIZE + (long) stoneCount * _STONE_SIZE + (long) markCount * _MARK_SIZE + commentLength;
+            if (size > _CHUNK_SIZE || stoneCount > 0xFFFF || markCount > 0xFFFF)
+                throw new IOException("The node data is too large");
+
+            // A record must not cross a chunk boundary
+            long remaining = _CHUNK_SIZE - (_dataSize & _CHUNK_MASK);
+            if (size > remaining) {
+                _data.write(new byte[(int) remaining]);
+                _dataSize += remaining;
+            }
+
+            long offset = _dataSize;
+            _data.writeShort(stoneCount);
+            _data.writeShort(markCount);
+            _data.writeInt(commentLength);
+            for (int i = 0; i < stoneCount; i++) {
+                LightCoords coords = node.setStones.get(i);
+                _data.writeByte(coords.x);
+                _data.writeByte(coords.y);
+                _data.writeByte(coords.color);
+            }
+            for (int i = 0; i < markCount; i++) {
+                BoardMark mark = node.boardMarks.get(i);
+                _data.writeByte(mark.type);
+                _data.writeByte(mark.x);
+                _data.writeByte(mark.y);
+                _data.writeChar(mark.getLabel());
+            }
+            if (commentLength > 0)
+                _data.write(comment);
+            _dataSize += size;
+            return offset;
+        }
+
+        /**
+         * Completes the library : the data section and the game index are appended, then the header is written.
+         */
+        public void close() throws IOException {
+            if (_nodes == null)
+                return;
+            try {
+                _data.close();
+                _data = null;
+
+                long dataOffset = _HEADER_SIZE + (long) _nodeCount * _RECORD_SIZE;
+                InputStream dataStream = new BufferedInputStream(new FileInputStream(_dataFile), 65536);
+                try {
+                    byte[] buffer = new byte[65536];
+                    int read;
+                    while ((read = dataStream.read(buffer)) > 0)
+                        _nodes.write(buffer, 0, read);
+                }
+                finally {
+                    Utils.closeObject(dataStream);
+                }
+                _roots.flush();
+                _rootsBuffer.writeTo(_nodes);
+                _nodes.close();
+                _nodes = null;
+
+                RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+                try {
+                    raf.writeInt(MAGIC);
+                    raf.writeInt(_VERSION);
+                    raf.writeInt(_nodeCount);
+                    raf.writeInt(_gameCount);
+                    raf.writeLong(dataOffset);
+                    raf.writeLong(_dataSize);
+                    raf.writeLong(dataOffset + _dataSize);
+                }
+                finally {
+                    Utils.closeObject(raf);
+                }
+            }
+            finally {
+                Utils.closeObject(_data);
+                Utils.closeObject(_nodes);
+                _nodes = null;
+                _dataFile.delete();
+            }
+        }
+    }
+}
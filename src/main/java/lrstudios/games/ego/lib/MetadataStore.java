@@ -0,0 +1,502 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+
+/**
+ * The game informations of a library, stored by column so they can be filtered without reading each game.
+ * The texts (player names, ranks, event and date) are dictionary-encoded : each column holds a sorted
+ * list of distinct values and the code of the value of each game. The numbers (komi, handicap, board size
+ * and result) are stored in primitive arrays.
+ * <p/>
+ * The store is created with a {@link Builder} (see also {@link SgfLibraryImporter}), then loaded in memory
+ * and filtered with queries :
+ * <pre>
+ * int[] gameIds = store.query().player("lee").komi(6, 7).winner(GoGameResult.BLACK).getGameIds();
+ * </pre>
+ */
+public final class MetadataStore {
+    public static final int MAGIC = 0x45474D53; // "EGMS"
+
+    public static final int
+            BLACK_NAME = 0,
+            WHITE_NAME = 1,
+            BLACK_RANK = 2,
+            WHITE_RANK = 3,
+            EVENT_NAME = 4,
+            GAME_DATE = 5;
+
+    private static final int _VERSION = 1;
+    private static final int _STRING_COLUMN_COUNT = 6;
+
+    private final int _rowCount;
+    private final int[] _gameIds;
+    private final String[][] _dictionaries = new String[_STRING_COLUMN_COUNT][];
+    private final String[][] _lowerCaseDictionaries = new String[_STRING_COLUMN_COUNT][];
+    private final int[][] _codes = new int[_STRING_COLUMN_COUNT][];
+    private final float[] _komi;
+    private final byte[] _handicap;
+    private final byte[] _boardSize;
+    private final byte[] _winner;
+    private final float[] _score;
+
+
+    /**
+     * Loads the specified store in memory.
+     *
+     * @throws IOException An error occurred during reading (the file may be corrupted).
+     */
+    public MetadataStore(File file) throws IOException {
+        ByteBuffer data;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE)
+                throw new IOException("The metadata store is too large");
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            data = ByteBuffer.wrap(bytes);
+        }
+        finally {
+            Utils.closeObject(raf);
+        }
+
+        try {
+            if (data.getInt() != MAGIC)
+                throw new IOException("This is not a metadata store");
+            if (data.getInt() != _VERSION)
+                throw new IOException("Unsupported metadata store version");
+            int rowCount = data.getInt();
+            _rowCount = rowCount;
+            _gameIds = new int[rowCount];
+            data.asIntBuffer().get(_gameIds);
+            data.position(data.position() + rowCount * 4);
+
+            for (int column = 0; column < _STRING_COLUMN_COUNT; column++) {
+                String[] dictionary = new String[data.getInt()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    int length = data.getInt();
+                    dictionary[i] = new String(data.array(), data.position(), length, "UTF-8");
+                    data.position(data.position() + length);
+                }
+                _dictionaries[column] = dictionary;
+                _codes[column] = new int[rowCount];
+                data.asIntBuffer().get(_codes[column]);
+                data.position(data.position() + rowCount * 4);
+            }
+
+            _komi = new float[rowCount];
+            data.asFloatBuffer().get(_komi);
+            data.position(data.position() + rowCount * 4);
+            _score = new float[rowCount];
+            data.asFloatBuffer().get(_score);
+            data.position(data.position() + rowCount * 4);
+            _handicap = new byte[rowCount];
+            data.get(_handicap);
+            _boardSize = new byte[rowCount];
+            data.get(_boardSize);
+            _winner = new byte[rowCount];
+            data.get(_winner);
+        }
+        catch (RuntimeException e) {
+            // Buffer underflows, negative sizes...
+            throw new IOException("The metadata store is corrupted", e);
+        }
+    }
+
+
+    /**
+     * Returns the number of games of the store.
+     */
+    public int getGameCount() {
+        return _rowCount;
+    }
+
+    /**
+     * Returns the distinct values of a text column (one of the column constants), in increasing order.
+     */
+    public String[] getValues(int column) {
+        return _dictionaries[column].clone();
+    }
+
+    /**
+     * Returns a query selecting all the games.
+     */
+    public Query query() {
+        return new Query();
+    }
+
+    private synchronized String[] _getLowerCaseDictionary(int column) {
+        String[] lowerCase = _lowerCaseDictionaries[column];
+        if (lowerCase == null) {
+            String[] dictionary = _dictionaries[column];
+            lowerCase = new String[dictionary.length];
+            for (int i = 0; i < dictionary.length; i++)
+                lowerCase[i] = dictionary[i].toLowerCase(Locale.ROOT);
+            _lowerCaseDictionaries[column] = lowerCase;
+        }
+        return lowerCase;
+    }
+
+
+    /**
+     * A set of conditions on the games, evaluated as soon as they are added : each condition scans a column
+     * and clears the games which don't match in a bit set. The conditions on texts are first evaluated on the
+     * dictionary of the column, so each game only costs an array lookup.
+     */
+    public final class Query {
+        private final long[] _bits;
+
+
+        private Query() {
+            _bits = new long[(_rowCount + 63) >>> 6];
+            Arrays.fill(_bits, -1L);
+            if ((_rowCount & 63) != 0)
+                _bits[_bits.length - 1] = (1L << (_rowCount & 63)) - 1;
+        }
+
+
+        /**
+         * Keeps the games where the value of the specified text column contains the text (ignoring case).
+         */
+        public Query contains(int column, String text) {
+            _filter(column, _match(column, text));
+            return this;
+        }
+
+        /**
+         * Keeps the games where the value of the specified text column is equal to the text.
+         */
+        public Query equalTo(int column, String value) {
+            boolean[] matches = new boolean[_dictionaries[column].length];
+            int code = Arrays.binarySearch(_dictionaries[column], value);
+            if (code >= 0)
+                matches[code] = true;
+            _filter(column, matches);
+            return this;
+        }
+
+        /**
+         * Keeps the games where the value of the specified text column is between from (inclusive) and
+         * to (exclusive), in lexicographic order. For example, range(GAME_DATE, "2001", "2006") keeps the
+         * games played from 2001 to 2005. A null bound is ignored.
+         */
+        public Query range(int column, String from, String to) {
+            String[] dictionary = _dictionaries[column];
+            int first = (from == null) ? 0 : _lowerBound(dictionary, from);
+            int last = (to == null) ? dictionary.length : _lowerBound(dictionary, to);
+            boolean[] matches = new boolean[dictionary.length];
+            for (int i = first; i < last; i++)
+                matches[i] = true;
+            _filter(column, matches);
+            return this;
+        }
+
+        /**
+         * Keeps the games where one of the players has a name containing the text (ignoring case).
+         */
+        public Query player(String text) {
+            boolean[] blackMatches = _match(BLACK_NAME, text);
+            boolean[] whiteMatches = _match(WHITE_NAME, text);
+            int[] blackCodes = _codes[BLACK_NAME];
+            int[] whiteCodes = _codes[WHITE_NAME];
+            long[] bits = _bits;
+            for (int word = 0; word < bits.length; word++) {
+                long current = bits[word];
+                if (current == 0)
+                    continue;
+                int base = word << 6;
+                int end = Math.min(64, _rowCount - base);
+                long mask = 0;
+                for (int i = 0; i < end; i++) {
+                    boolean match = blackMatches[blackCodes[base + i]] | whiteMatches[whiteCodes[base + i]];
+                    mask |= (match ? 1L : 0L) << i;
+                }
+                bits[word] = current & mask;
+            }
+            return this;
+        }
+
+        public Query event(String text) {
+            return contains(EVENT_NAME, text);
+        }
+
+        /**
+         * Keeps the games with a komi between min and max (inclusive).
+         */
+        public Query komi(float min, float max) {
+            float[] komi = _komi;
+            long[] bits = _bits;
+            for (int word = 0; word < bits.length; word++) {
+                long current = bits[word];
+                if (current == 0)
+                    continue;
+                int base = word << 6;
+                int end = Math.min(64, _rowCount - base);
+                long mask = 0;
+                for (int i = 0; i < end; i++) {
+                    float value = komi[base + i];
+                    mask |= (value >= min && value <= max ? 1L : 0L) << i;
+                }
+                bits[word] = current & mask;
+            }
+            return this;
+        }
+
+        /**
+         * Keeps the games with a handicap between min and max (inclusive).
+         */
+        public Query handicap(int min, int max) {
+            _filter(_handicap, min, max);
+            return this;
+        }
+
+        public Query boardSize(int size) {
+            _filter(_boardSize, size, size);
+            return this;
+        }
+
+        /**
+         * Keeps the games won by the specified player (one of the winner constants of {@link GoGameResult}).
+         * Games without result have an UNKNOWN_WINNER.
+         */
+        public Query winner(char winner) {
+            _filter(_winner, winner, winner);
+            return this;
+        }
+
+        /**
+         * Returns the number of selected games.
+         */
+        public int count() {
+            int count = 0;
+            for (long word : _bits)
+                count += Long.bitCount(word);
+            return count;
+        }
+
+        /**
+         * Returns the library indexes of the selected games, in the order they were added to the store.
+         */
+        public int[] getGameIds() {
+            int[] ids = new int[count()];
+            int count = 0;
+            for (int word = 0; word < _bits.length; word++) {
+                long bits = _bits[word];
+                while (bits != 0) {
+                    ids[count++] = _gameIds[(word << 6) + Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1;
+                }
+            }
+            return ids;
+        }
+
+        private boolean[] _match(int column, String text) {
+            String[] dictionary = _getLowerCaseDictionary(column);
+            String lowerCaseText = text.toLowerCase(Locale.ROOT);
+            boolean[] matches = new boolean[dictionary.length];
+            for (int i = 0; i < dictionary.length; i++)
+                matches[i] = dictionary[i].contains(lowerCaseText);
+            return matches;
+        }
+
+        private void _filter(int column, boolean[] matches) {
+            int[] codes = _codes[column];
+            long[] bits = _bits;
+            for (int word = 0; word < bits.length; word++) {
+                long current = bits[word];
+                if (current == 0)
+                    continue;
+                int base = word << 6;
+                int end = Math.min(64, _rowCount - base);
+                long mask = 0;
+                for (int i = 0; i < end; i++)
+                    mask |= (matches[codes[base + i]] ? 1L : 0L) << i;
+                bits[word] = current & mask;
+            }
+        }
+
+        private void _filter(byte[] values, int min, int max) {
+            long[] bits = _bits;
+            for (int word = 0; word < bits.length; word++) {
+                long current = bits[word];
+                if (current == 0)
+                    continue;
+                int base = word << 6;
+                int end = Math.min(64, _rowCount - base);
+                long mask = 0;
+                for (int i = 0; i < end; i++) {
+                    int value = values[base + i];
+                    mask |= (value >= min && value <= max ? 1L : 0L) << i;
+                }
+                bits[word] = current & mask;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first value which is not smaller than the key.
+     */
+    private static int _lowerBound(String[] values, String key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle].compareTo(key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+
+    /**
+     * Collects the game informations of a library, then writes the store.
+     */
+    public static final class Builder {
+        private final ArrayList<HashMap<String, Integer>> _dictionaries = new ArrayList<>(_STRING_COLUMN_COUNT);
+        private final int[][] _codes = new int[_STRING_COLUMN_COUNT][];
+        private int[] _gameIds = new int[1024];
+        private float[] _komi = new float[1024];
+        private float[] _score = new float[1024];
+        private byte[] _handicap = new byte[1024];
+        private byte[] _boardSize = new byte[1024];
+        private byte[] _winner = new byte[1024];
+        private int _rowCount;
+
+
+        public Builder() {
+            for (int column = 0; column < _STRING_COLUMN_COUNT; column++) {
+                _dictionaries.add(new HashMap<String, Integer>());
+                _codes[column] = new int[1024];
+            }
+        }
+
+
+        public int getGameCount() {
+            return _rowCount;
+        }
+
+        /**
+         * Adds the informations of a game.
+         *
+         * @param gameId The index of the game in the library, returned by the queries.
+         */
+        public void add(int gameId, GameInfo info) {
+            int row = _rowCount++;
+            if (row == _gameIds.length) {
+                int capacity = row * 2;
+                _gameIds = Arrays.copyOf(_gameIds, capacity);
+                _komi = Arrays.copyOf(_komi, capacity);
+                _score = Arrays.copyOf(_score, capacity);
+                _handicap = Arrays.copyOf(_handicap, capacity);
+                _boardSize = Arrays.copyOf(_boardSize, capacity);
+                _winner = Arrays.copyOf(_winner, capacity);
+                for (int column = 0; column < _STRING_COLUMN_COUNT; column++)
+                    _codes[column] = Arrays.copyOf(_codes[column], capacity);
+            }
+
+            _gameIds[row] = gameId;
+            _addString(BLACK_NAME, row, info.blackName);
+            _addString(WHITE_NAME, row, info.whiteName);
+            _addString(BLACK_RANK, row, info.blackRank);
+            _addString(WHITE_RANK, row, info.whiteRank);
+            _addString(EVENT_NAME, row, info.eventName);
+            _addString(GAME_DATE, row, info.gameDate);
+            _komi[row] = (float) info.komi;
+            _handicap[row] = (byte) info.handicap;
+            _boardSize[row] = (byte) info.boardSize;
+            if (info.result == null) {
+                _winner[row] = (byte) GoGameResult.UNKNOWN_WINNER;
+                _score[row] = (float) GoGameResult.UNKNOWN_AMOUNT;
+            }
+            else {
+                _winner[row] = (byte) info.result.getWinner();
+                _score[row] = (float) info.result.getScore();
+            }
+        }
+
+        private void _addString(int column, int row, String value) {
+            if (value == null)
+                value = "";
+            HashMap<String, Integer> dictionary = _dictionaries.get(column);
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.put(value, code);
+            }
+            _codes[column][row] = code;
+        }
+
+        /**
+         * Writes the store in the specified file.
+         */
+        public void save(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(_VERSION);
+                out.writeInt(_rowCount);
+                for (int i = 0; i < _rowCount; i++)
+                    out.writeInt(_gameIds[i]);
+
+                for (int column = 0; column < _STRING_COLUMN_COUNT; column++) {
+                    // The dictionary is sorted, so the codes are renumbered
+                    HashMap<String, Integer> dictionary = _dictionaries.get(column);
+                    String[] values = dictionary.keySet().toArray(new String[dictionary.size()]);
+                    Arrays.sort(values);
+                    int[] newCodes = new int[values.length];
+                    out.writeInt(values.length);
+                    for (int i = 0; i < values.length; i++) {
+                        newCodes[dictionary.get(values[i])] = i;
+                        byte[] bytes = values[i].getBytes("UTF-8");
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    int[] codes = _codes[column];
+                    for (int i = 0; i < _rowCount; i++)
+                        out.writeInt(newCodes[codes[i]]);
+                }
+
+                for (int i = 0; i < _rowCount; i++)
+                    out.writeFloat(_komi[i]);
+                for (int i = 0; i < _rowCount; i++)
+                    out.writeFloat(_score[i]);
+                out.write(_handicap, 0, _rowCount);
+                out.write(_boardSize, 0, _rowCount);
+                out.write(_winner, 0, _rowCount);
+            }
+            finally {
+                Utils.closeObject(out);
+            }
+        }
+    }
+}
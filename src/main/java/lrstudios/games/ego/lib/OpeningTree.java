@@ -0,0 +1,513 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Statistics on the openings of a set of games : the first moves of the games are merged by position,
+ * so transpositions and symmetric moves are counted together, and each position and each move keep
+ * the number of games and of wins of each player. Files are created with a {@link Builder}, and are
+ * memory-mapped when read.
+ * <p/>
+ * A position is identified by its hash for the 8 symmetries of the board (see {@link PositionHash}),
+ * and its moves are stored in the orientation giving this hash. The positions are sorted by hash and
+ * the moves of a position are stored together, sorted by number of games, so the continuations of
+ * a board are found with a binary search. The side to move is not part of a position.
+ */
+public final class OpeningTree {
+    public static final int MAGIC = 0x45474F54; // "EGOT"
+
+    private static final int _VERSION = 1;
+    private static final int _HEADER_SIZE = 32;
+    private static final int _POSITION_SIZE = 32;
+    private static final int _MOVE_SIZE = 24;
+    private static final short _PASS = -1;
+
+    private final int _boardSize;
+    private final int _maxMoves;
+    private final int _positionCount;
+    private final int _moveCount;
+    private final ByteBuffer _positions;
+    private final ByteBuffer _moves;
+
+
+    /**
+     * Maps the specified file. The mappings stay valid until they are garbage collected.
+     */
+    public OpeningTree(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("The file is too short");
+            }
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("This is not an opening tree");
+            if (header.getInt(4) != _VERSION)
+                throw new IOException("Unsupported opening tree version : " + header.getInt(4));
+
+            _boardSize = header.getInt(8);
+            _maxMoves = header.getInt(12);
+            _positionCount = header.getInt(16);
+            _moveCount = header.getInt(20);
+            long positionsLength = (long) _positionCount * _POSITION_SIZE;
+            long movesLength = (long) _moveCount * _MOVE_SIZE;
+            if (positionsLength > Integer.MAX_VALUE || movesLength > Integer.MAX_VALUE)
+                throw new IOException("The opening tree is too large to be mapped");
+            if (_HEADER_SIZE + positionsLength + movesLength > channel.size())
+                throw new IOException("The file is truncated");
+
+            _positions = channel.map(FileChannel.MapMode.READ_ONLY, _HEADER_SIZE, positionsLength);
+            _moves = channel.map(FileChannel.MapMode.READ_ONLY, _HEADER_SIZE + positionsLength, movesLength);
+        }
+        finally {
+            Utils.closeObject(raf);
+        }
+    }
+
+
+    public int getBoardSize() {
+        return _boardSize;
+    }
+
+    /**
+     * Returns the number of moves of each game which were merged.
+     */
+    public int getMaxMoves() {
+        return _maxMoves;
+    }
+
+    public int getPositionCount() {
+        return _positionCount;
+    }
+
+    /**
+     * Returns the statistics of the specified position, or null if no game reached it.
+     */
+    public Statistics getStatistics(GoBoard board) {
+        int position = _find(_hash(board));
+        if (position < 0)
+            return null;
+        int offset = position * _POSITION_SIZE;
+        return new Statistics(_positions.getInt(offset + 8), _positions.getInt(offset + 12), _positions.getInt(offset + 16));
+    }
+
+    /**
+     * Returns the moves played from the specified position, sorted by number of games. The coordinates are
+     * given in the orientation of the board. When the position is symmetric, equivalent moves are only returned once.
+     */
+    public List<Continuation> getContinuations(GoBoard board) {
+        ArrayList<Continuation> continuations = new ArrayList<>();
+        PositionHash hash = _hash(board);
+        int position = _find(hash);
+        if (position < 0)
+            return continuations;
+
+        // Moves are stored in the canonical orientation of the position
+        int symmetry = BoardSymmetry.inverse(hash.getCanonicalVariant() >> 1);
+        int offset = position * _POSITION_SIZE;
+        int first = _positions.getInt(offset + 20);
+        int count = _positions.getInt(offset + 24);
+        for (int i = first; i < first + count; i++) {
+            int moveOffset = i * _MOVE_SIZE;
+            short point = _moves.getShort(moveOffset + 20);
+            int x = -1;
+            int y = -1;
+            if (point != _PASS) {
+                int transformed = BoardSymmetry.transform(symmetry, point % _boardSize, point / _boardSize, _boardSize);
+                x = transformed % _boardSize;
+                y = transformed / _boardSize;
+            }
+            continuations.add(new Continuation(x, y, _moves.get(moveOffset + 22),
+                    _moves.getInt(moveOffset + 8), _moves.getInt(moveOffset + 12), _moves.getInt(moveOffset + 16)));
+        }
+        return continuations;
+    }
+
+    private PositionHash _hash(GoBoard board) {
+        if (board.getSize() != _boardSize)
+            return null;
+        PositionHash hash = new PositionHash(_boardSize, false);
+        byte[] colors = board.getBoardArray();
+        for (int i = 0; i < colors.length; i++)
+            hash.onChange(i, GoBoard.EMPTY, colors[i]);
+        return hash;
+    }
+
+    /**
+     * Returns the index of the specified position, or -1.
+     */
+    private int _find(PositionHash hash) {
+        if (hash == null)
+            return -1;
+        long key = hash.getCanonicalHash();
+        int low = 0;
+        int high = _positionCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = _positions.getLong(middle * _POSITION_SIZE);
+            if (middleKey < key)
+                low = middle + 1;
+            else if (middleKey > key)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+
+    /**
+     * The number of games which reached a position (or played a move), and their results.
+     */
+    public static class Statistics {
+        public final int gameCount;
+        public final int blackWins;
+        public final int whiteWins;
+
+        Statistics(int gameCount, int blackWins, int whiteWins) {
+            this.gameCount = gameCount;
+            this.blackWins = blackWins;
+            this.whiteWins = whiteWins;
+        }
+    }
+
+    /**
+     * A move played from a position. The statistics are those of the games which played this move here.
+     */
+    public static final class Continuation extends Statistics {
+        /**
+         * The coordinates of the move (-1 when stones were added instead of a move : passes are not stored).
+         */
+        public final int x;
+        public final int y;
+        public final byte color;
+
+        Continuation(int x, int y, byte color, int gameCount, int blackWins, int whiteWins) {
+            super(gameCount, blackWins, whiteWins);
+            this.x = x;
+            this.y = y;
+            this.color = color;
+        }
+
+        @Override
+        public String toString() {
+            return (color == GoBoard.BLACK ? "B" : "W") + "(" + x + ", " + y + ") : " + gameCount + " games";
+        }
+    }
+
+
+    /**
+     * Merges the first moves of games, then writes the opening tree. The games are split between several
+     * threads, and the partial results are merged at the end of each call to {@link #addGames(List)}.
+     */
+    public static final class Builder {
+        private final int _boardSize;
+        private final int _maxMoves;
+        private int _threadCount = Runtime.getRuntime().availableProcessors();
+        private final Tables _tables = new Tables();
+
+
+        /**
+         * @param maxMoves The number of moves of each game to merge.
+         */
+        public Builder(int boardSize, int maxMoves) {
+            _boardSize = boardSize;
+            _maxMoves = maxMoves;
+        }
+
+
+        /**
+         * Sets the number of threads used by {@link #addGames(List)} (default : the number of processors).
+         */
+        public void setThreadCount(int count) {
+            _threadCount = Math.max(1, count);
+        }
+
+        public int getPositionCount() {
+            return _tables.positionCount;
+        }
+
+        /**
+         * Merges the main line of the specified games. Games with another board size are ignored.
+         *
+         * @throws IOException The build has been interrupted.
+         */
+        public void addGames(final List<GoGame> games) throws IOException {
+            int threadCount = Math.min(_threadCount, Math.max(1, games.size() / 64));
+            if (threadCount == 1) {
+                _tables.addGames(games, _boardSize, _maxMoves);
+                return;
+            }
+
+            ExecutorService executor = Utils.newDaemonThreadPool(threadCount, "OpeningTree");
+            try {
+                ArrayList<Future<Tables>> results = new ArrayList<>(threadCount);
+                for (int i = 0; i < threadCount; i++) {
+                    final List<GoGame> part = games.subList(games.size() * i / threadCount, games.size() * (i + 1) / threadCount);
+                    results.add(executor.submit(new Callable<Tables>() {
+                        @Override
+                        public Tables call() {
+                            Tables tables = new Tables();
+                            tables.addGames(part, _boardSize, _maxMoves);
+                            return tables;
+                        }
+                    }));
+                }
+                for (Future<Tables> result : results)
+                    _tables.merge(result.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("The build has been interrupted");
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IOException("The build failed", e.getCause());
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Writes the opening tree in the specified file.
+         */
+        public void save(File file) throws IOException {
+            Tables tables = _tables;
+            int positionCount = tables.positionCount;
+            int moveCount = tables.moveCount;
+
+            // Sort the positions by hash
+            long[] keys = Arrays.copyOf(tables.positionHashes, positionCount);
+            long[] order = new long[positionCount];
+            for (int i = 0; i < positionCount; i++)
+                order[i] = i;
+            Utils.sortByKey(keys, order, positionCount);
+            int[] ranks = new int[positionCount];
+            for (int i = 0; i < positionCount; i++)
+                ranks[(int) order[i]] = i;
+
+            // Sort the moves by position, then by decreasing number of games
+            long[] moveKeys = new long[moveCount];
+            long[] moveOrder = new long[moveCount];
+            int[] firstMoves = new int[positionCount];
+            int[] moveCounts = new int[positionCount];
+            for (int i = 0; i < moveCount; i++) {
+                int rank = ranks[tables.positionIndexes.get(tables.moveParents[i])];
+                moveKeys[i] = ((long) rank << 32) | (Integer.MAX_VALUE - tables.moveGames[i]);
+                moveOrder[i] = i;
+                moveCounts[rank]++;
+            }
+            Utils.sortByKey(moveKeys, moveOrder, moveCount);
+            for (int i = 1; i < positionCount; i++)
+                firstMoves[i] = firstMoves[i - 1] + moveCounts[i - 1];
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(_VERSION);
+                out.writeInt(_boardSize);
+                out.writeInt(_maxMoves);
+                out.writeInt(positionCount);
+                out.writeInt(moveCount);
+                out.write(new byte[_HEADER_SIZE - 24]);
+
+                for (int i = 0; i < positionCount; i++) {
+                    int position = (int) order[i];
+                    out.writeLong(tables.positionHashes[position]);
+                    out.writeInt(tables.positionGames[position]);
+                    out.writeInt(tables.positionBlackWins[position]);
+                    out.writeInt(tables.positionWhiteWins[position]);
+                    out.writeInt(firstMoves[i]);
+                    out.writeInt(moveCounts[i]);
+                    out.writeInt(0);
+                }
+                for (int i = 0; i < moveCount; i++) {
+                    int move = (int) moveOrder[i];
+                    out.writeLong(tables.moveChildren[move]);
+                    out.writeInt(tables.moveGames[move]);
+                    out.writeInt(tables.moveBlackWins[move]);
+                    out.writeInt(tables.moveWhiteWins[move]);
+                    out.writeShort(tables.movePoints[move]);
+                    out.writeByte(tables.moveColors[move]);
+                    out.writeByte(0);
+                }
+            }
+            finally {
+                Utils.closeObject(out);
+            }
+        }
+    }
+
+    /**
+     * The positions and moves merged by a builder thread, stored in parallel arrays.
+     */
+    private static final class Tables {
+        public final LongIntHashMap positionIndexes = new LongIntHashMap(1024);
+        public long[] positionHashes = new long[1024];
+        public int[] positionGames = new int[1024];
+        public int[] positionBlackWins = new int[1024];
+        public int[] positionWhiteWins = new int[1024];
+        public int positionCount;
+
+        // Moves are found by a combination of the hashes of the two positions
+        public final LongIntHashMap moveIndexes = new LongIntHashMap(1024);
+        public long[] moveParents = new long[1024];
+        public long[] moveChildren = new long[1024];
+        public int[] moveGames = new int[1024];
+        public int[] moveBlackWins = new int[1024];
+        public int[] moveWhiteWins = new int[1024];
+        public short[] movePoints = new short[1024];
+        public byte[] moveColors = new byte[1024];
+        public int moveCount;
+
+
+        public void addGames(List<GoGame> games, int boardSize, int maxMoves) {
+            PositionHash hash = new PositionHash(boardSize, false);
+            ReplayBoard board = new ReplayBoard(boardSize, hash);
+            // The number of the last game which reached each position, so a game counts each position once
+            LongIntHashMap visited = new LongIntHashMap(1024);
+            int gameNumber = -1;
+            for (GoGame game : games) {
+                if (game.info.boardSize != boardSize)
+                    continue;
+                gameNumber++;
+
+                char winner = (game.info.result == null) ? GoGameResult.UNKNOWN_WINNER : game.info.result.getWinner();
+                int blackWin = (winner == GoGameResult.BLACK) ? 1 : 0;
+                int whiteWin = (winner == GoGameResult.WHITE) ? 1 : 0;
+
+                board.clear();
+                GameNode node = game.getBaseNode();
+                board.apply(node);
+                long positionHash = hash.getCanonicalHash();
+                addPosition(positionHash, 1, blackWin, whiteWin);
+                visited.put(positionHash, gameNumber);
+
+                int moves = 0;
+                while (moves < maxMoves) {
+                    node.ensureLoaded();
+                    if (node.nextNodes.isEmpty())
+                        break;
+                    node = node.nextNodes.get(0);
+
+                    // The move is stored in the orientation of the canonical hash of the previous position
+                    int symmetry = hash.getCanonicalVariant() >> 1;
+                    boolean isMove = node.color == GoBoard.BLACK || node.color == GoBoard.WHITE;
+                    short point = _PASS;
+                    if (isMove && node.x >= 0 && node.y >= 0 && node.x < boardSize && node.y < boardSize)
+                        point = (short) BoardSymmetry.transform(symmetry, node.x, node.y, boardSize);
+
+                    board.apply(node);
+                    if (isMove)
+                        moves++;
+
+                    // Passes don't change the position, and a position reached again (ko) is not counted twice
+                    long newHash = hash.getCanonicalHash();
+                    if (newHash == positionHash)
+                        continue;
+                    if (visited.get(newHash) != gameNumber) {
+                        visited.put(newHash, gameNumber);
+                        addPosition(newHash, 1, blackWin, whiteWin);
+                        addMove(positionHash, newHash, point, isMove ? node.color : GoBoard.EMPTY, 1, blackWin, whiteWin);
+                    }
+                    positionHash = newHash;
+                }
+            }
+        }
+
+        public void addPosition(long hash, int games, int blackWins, int whiteWins) {
+            int index = positionIndexes.get(hash);
+            if (index == LongIntHashMap.NO_VALUE) {
+                index = positionCount++;
+                if (index == positionHashes.length) {
+                    int capacity = index * 2;
+                    positionHashes = Arrays.copyOf(positionHashes, capacity);
+                    positionGames = Arrays.copyOf(positionGames, capacity);
+                    positionBlackWins = Arrays.copyOf(positionBlackWins, capacity);
+                    positionWhiteWins = Arrays.copyOf(positionWhiteWins, capacity);
+                }
+                positionHashes[index] = hash;
+                positionIndexes.put(hash, index);
+            }
+            positionGames[index] += games;
+            positionBlackWins[index] += blackWins;
+            positionWhiteWins[index] += whiteWins;
+        }
+
+        public void addMove(long parent, long child, short point, byte color, int games, int blackWins, int whiteWins) {
+            long key = (parent * 0xC2B2AE3D27D4EB4FL) ^ child;
+            int index = moveIndexes.get(key);
+            if (index == LongIntHashMap.NO_VALUE) {
+                index = moveCount++;
+                if (index == moveParents.length) {
+                    int capacity = index * 2;
+                    moveParents = Arrays.copyOf(moveParents, capacity);
+                    moveChildren = Arrays.copyOf(moveChildren, capacity);
+                    moveGames = Arrays.copyOf(moveGames, capacity);
+                    moveBlackWins = Arrays.copyOf(moveBlackWins, capacity);
+                    moveWhiteWins = Arrays.copyOf(moveWhiteWins, capacity);
+                    movePoints = Arrays.copyOf(movePoints, capacity);
+                    moveColors = Arrays.copyOf(moveColors, capacity);
+                }
+                moveParents[index] = parent;
+                moveChildren[index] = child;
+                movePoints[index] = point;
+                moveColors[index] = color;
+                moveIndexes.put(key, index);
+            }
+            moveGames[index] += games;
+            moveBlackWins[index] += blackWins;
+            moveWhiteWins[index] += whiteWins;
+        }
+
+        /**
+         * Adds the positions and moves of another table to this one.
+         */
+        public void merge(Tables other) {
+            for (int i = 0; i < other.positionCount; i++)
+                addPosition(other.positionHashes[i], other.positionGames[i], other.positionBlackWins[i], other.positionWhiteWins[i]);
+            for (int i = 0; i < other.moveCount; i++) {
+                addMove(other.moveParents[i], other.moveChildren[i], other.movePoints[i], other.moveColors[i],
+                        other.moveGames[i], other.moveBlackWins[i], other.moveWhiteWins[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Searches a board pattern in the main line of a set of games. A pattern is a rectangular region of a board
+ * whose intersections can be {@link GoBoard#BLACK}, {@link GoBoard#WHITE}, {@link GoBoard#EMPTY} or
+ * {@link GoBoard#ANY}. It is matched with the 8 symmetries of the board, with and without reversing the colors.
+ * If the region touches an edge of the board, the matched region must touch the same edge (so corner patterns
+ * stay in the corners); otherwise it can be found anywhere on the board.
+ * <p/>
+ * The positions are stored as bitboards (one bit per intersection, one int per row), so a pattern row is
+ * compared with a few bit operations, and positions with not enough stones are skipped. The games are split
+ * between several threads, and the matches are returned in the order of the games.
+ */
+public final class PatternSearch {
+    private static final int _GAMES_PER_TASK = 64;
+    private static final int _MAX_BOARD_SIZE = 32;
+
+    private final int _boardSize;
+    private final Variant[] _variants;
+    private int _threadCount = Runtime.getRuntime().availableProcessors();
+    private boolean _allMatches;
+
+
+    /**
+     * Creates a search for the specified region of a board. Intersections which are not black, white or empty
+     * are considered as {@link GoBoard#ANY}.
+     */
+    public PatternSearch(GoBoard board, int left, int top, int width, int height) {
+        int size = board.getSize();
+        if (size > _MAX_BOARD_SIZE)
+            throw new IllegalArgumentException("The board is too large");
+        if (left < 0 || top < 0 || width <= 0 || height <= 0 || left + width > size || top + height > size)
+            throw new IllegalArgumentException("The region is outside of the board");
+
+        _boardSize = size;
+        ArrayList<Variant> variants = new ArrayList<>(16);
+        for (int symmetry = 0; symmetry < 8; symmetry++) {
+            for (int reversed = 0; reversed < 2; reversed++) {
+                Variant variant = new Variant(board, left, top, width, height, symmetry, reversed == 1);
+                if (!variants.contains(variant))
+                    variants.add(variant);
+            }
+        }
+        _variants = variants.toArray(new Variant[variants.size()]);
+    }
+
+
+    /**
+     * Sets the number of threads used to search (default : the number of processors).
+     */
+    public void setThreadCount(int count) {
+        _threadCount = Math.max(1, count);
+    }
+
+    /**
+     * Set to true to return every position matching the pattern, instead of the first one of each game.
+     */
+    public void setAllMatches(boolean all) {
+        _allMatches = all;
+    }
+
+    /**
+     * Searches the pattern in the games of the specified library, which must have the board size of the pattern.
+     *
+     * @throws IOException The search has been interrupted.
+     */
+    public List<Match> search(final MappedGameTree tree) throws IOException {
+        return _search(tree.getGameCount(), new GameReplayer() {
+            @Override
+            public void replay(int game, Scanner scanner) {
+                int node = tree.getRoot(game);
+                while (node != MappedGameTree.NO_NODE) {
+                    if (tree.getStoneCount(node) > 0) {
+                        for (LightCoords coords : tree.getStones(node))
+                            scanner.setStone(coords.x, coords.y, coords.color);
+                    }
+                    if (scanner.position(tree.getX(node), tree.getY(node), tree.getColor(node)))
+                        return;
+                    node = tree.getFirstChild(node);
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches the pattern in the specified games (the index of a game in the list is used in the matches).
+     * Games with another board size are ignored.
+     *
+     * @throws IOException The search has been interrupted.
+     */
+    public List<Match> search(final List<GoGame> games) throws IOException {
+        return _search(games.size(), new GameReplayer() {
+            @Override
+            public void replay(int game, Scanner scanner) {
+                GoGame goGame = games.get(game);
+                if (goGame.info.boardSize != _boardSize)
+                    return;
+
+                GameNode node = goGame.getBaseNode();
+                while (node != null) {
+                    if (node.setStones != null) {
+                        for (LightCoords coords : node.setStones)
+                            scanner.setStone(coords.x, coords.y, coords.color);
+                    }
+                    if (scanner.position(node.x, node.y, node.color))
+                        return;
+                    node.ensureLoaded();
+                    node = node.nextNodes.isEmpty() ? null : node.nextNodes.get(0);
+                }
+            }
+        });
+    }
+
+    private List<Match> _search(int gameCount, final GameReplayer replayer) throws IOException {
+        ArrayList<Match> matches = new ArrayList<>();
+        if (_threadCount == 1 || gameCount <= _GAMES_PER_TASK) {
+            new SearchTask(replayer, 0, gameCount, matches).call();
+            return matches;
+        }
+
+        ExecutorService executor = Utils.newDaemonThreadPool(_threadCount, "PatternSearch");
+        try {
+            ArrayList<Future<List<Match>>> results = new ArrayList<>();
+            for (int start = 0; start < gameCount; start += _GAMES_PER_TASK) {
+                int end = Math.min(gameCount, start + _GAMES_PER_TASK);
+                results.add(executor.submit(new SearchTask(replayer, start, end, new ArrayList<Match>())));
+            }
+            for (Future<List<Match>> result : results)
+                matches.addAll(result.get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The search has been interrupted");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("The search failed", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return matches;
+    }
+
+
+    /**
+     * A position of a game where the pattern has been found.
+     */
+    public static final class Match {
+        public final int game;
+        /**
+         * The number of moves played in the main line.
+         */
+        public final int moveNumber;
+        /**
+         * The top left intersection of the matched region.
+         */
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        /**
+         * True if the colors of the pattern were reversed.
+         */
+        public final boolean reversedColors;
+
+        Match(int game, int moveNumber, int x, int y, int width, int height, boolean reversedColors) {
+            this.game = game;
+            this.moveNumber = moveNumber;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.reversedColors = reversedColors;
+        }
+
+        @Override
+        public String toString() {
+            return "game " + game + ", move " + moveNumber + " at (" + x + ", " + y + ")" + (reversedColors ? ", reversed" : "");
+        }
+    }
+
+
+    private interface GameReplayer {
+        /**
+         * Replays the main line of a game, calling {@link Scanner#position} after each node until it returns true.
+         */
+        void replay(int game, Scanner scanner);
+    }
+
+    private final class SearchTask implements Callable<List<Match>> {
+        private final GameReplayer _replayer;
+        private final int _start;
+        private final int _end;
+        private final List<Match> _matches;
+
+        public SearchTask(GameReplayer replayer, int start, int end, List<Match> matches) {
+            _replayer = replayer;
+            _start = start;
+            _end = end;
+            _matches = matches;
+        }
+
+        @Override
+        public List<Match> call() {
+            Scanner scanner = new Scanner(_matches);
+            for (int game = _start; game < _end; game++) {
+                scanner.reset(game);
+                _replayer.replay(game, scanner);
+            }
+            return _matches;
+        }
+    }
+
+    /**
+     * Replays games and keeps the bitboards of the current position up to date.
+     */
+    private final class Scanner implements ReplayBoard.Listener {
+        private final ReplayBoard _replayBoard = new ReplayBoard(_boardSize, this);
+        private final List<Match> _matches;
+        private final int[] _black = new int[_boardSize];
+        private final int[] _white = new int[_boardSize];
+        private int _blackCount;
+        private int _whiteCount;
+        private int _game;
+        private int _moveNumber;
+
+        public Scanner(List<Match> matches) {
+            _matches = matches;
+        }
+
+        public void reset(int game) {
+            _replayBoard.clear();
+            _game = game;
+            _moveNumber = 0;
+        }
+
+        @Override
+        public void onChange(int point, byte previousColor, byte color) {
+            int x = point % _boardSize;
+            int y = point / _boardSize;
+            if (previousColor == GoBoard.BLACK) {
+                _black[y] &= ~(1 << x);
+                _blackCount--;
+            }
+            else if (previousColor == GoBoard.WHITE) {
+                _white[y] &= ~(1 << x);
+                _whiteCount--;
+            }
+            if (color == GoBoard.BLACK) {
+                _black[y] |= 1 << x;
+                _blackCount++;
+            }
+            else if (color == GoBoard.WHITE) {
+                _white[y] |= 1 << x;
+                _whiteCount++;
+            }
+        }
+
+        public void setStone(int x, int y, byte color) {
+            if (x >= 0 && y >= 0 && x < _boardSize && y < _boardSize)
+                _replayBoard.set(y * _boardSize + x, color);
+        }
+
+        /**
+         * Plays the move of a node (the setup stones must have been set), and checks the new position.
+         * Returns true if the rest of the game can be skipped.
+         */
+        public boolean position(int x, int y, byte color) {
+            if (color == GoBoard.BLACK || color == GoBoard.WHITE) {
+                _replayBoard.play(x, y, color);
+                _moveNumber++;
+            }
+
+            for (Variant variant : _variants) {
+                if (_blackCount < variant.blackCount || _whiteCount < variant.whiteCount)
+                    continue;
+                for (int top = variant.minTop; top <= variant.maxTop; top++) {
+                    for (int left = variant.minLeft; left <= variant.maxLeft; left++) {
+                        if (variant.matches(_black, _white, left, top)) {
+                            _matches.add(new Match(_game, _moveNumber, left, top, variant.width, variant.height, variant.reversedColors));
+                            return !_allMatches;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The pattern after a symmetry and an optional color reversal, as bit masks for each row.
+     */
+    private static final class Variant {
+        public final int width;
+        public final int height;
+        public final boolean reversedColors;
+        public final int[] black;
+        public final int[] white;
+        public final int[] empty;
+        public final int blackCount;
+        public final int whiteCount;
+        public final int minLeft;
+        public final int maxLeft;
+        public final int minTop;
+        public final int maxTop;
+
+        public Variant(GoBoard board, int left, int top, int width, int height, int symmetry, boolean reversedColors) {
+            int size = board.getSize();
+            BoardSymmetry transform = BoardSymmetry.get(symmetry, reversedColors);
+            this.reversedColors = reversedColors;
+
+            // Transformed bounds of the region
+            int[] corners = {left, top, left + width - 1, top + height - 1};
+            int x0 = transform.getX(corners[0], corners[1], size);
+            int y0 = transform.getY(corners[0], corners[1], size);
+            int x1 = transform.getX(corners[2], corners[3], size);
+            int y1 = transform.getY(corners[2], corners[3], size);
+            int newLeft = Math.min(x0, x1);
+            int newTop = Math.min(y0, y1);
+            this.width = Math.abs(x1 - x0) + 1;
+            this.height = Math.abs(y1 - y0) + 1;
+
+            black = new int[this.height];
+            white = new int[this.height];
+            empty = new int[this.height];
+            int blackStones = 0;
+            int whiteStones = 0;
+            for (int y = top; y < top + height; y++) {
+                for (int x = left; x < left + width; x++) {
+                    byte color = transform.getColor(board.getColor(x, y));
+                    int row = transform.getY(x, y, size) - newTop;
+                    int bit = 1 << (transform.getX(x, y, size) - newLeft);
+                    if (color == GoBoard.BLACK) {
+                        black[row] |= bit;
+                        blackStones++;
+                    }
+                    else if (color == GoBoard.WHITE) {
+                        white[row] |= bit;
+                        whiteStones++;
+                    }
+                    else if (color == GoBoard.EMPTY) {
+                        empty[row] |= bit;
+                    }
+                }
+            }
+            blackCount = blackStones;
+            whiteCount = whiteStones;
+
+            // A region touching an edge must stay on this edge
+            boolean touchesLeft = newLeft == 0;
+            boolean touchesRight = newLeft + this.width == size;
+            boolean touchesTop = newTop == 0;
+            boolean touchesBottom = newTop + this.height == size;
+            minLeft = (touchesRight && !touchesLeft) ? size - this.width : 0;
+            maxLeft = (touchesLeft && !touchesRight) ? 0 : size - this.width;
+            minTop = (touchesBottom && !touchesTop) ? size - this.height : 0;
+            maxTop = (touchesTop && !touchesBottom) ? 0 : size - this.height;
+        }
+
+        public boolean matches(int[] blackRows, int[] whiteRows, int left, int top) {
+            for (int row = 0; row < height; row++) {
+                int b = blackRows[top + row] >>> left;
+                int w = whiteRows[top + row] >>> left;
+                if ((b & black[row]) != black[row] || (w & white[row]) != white[row] || ((b | w) & empty[row]) != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Variant))
+                return false;
+            Variant other = (Variant) obj;
+            return width == other.width && height == other.height && minLeft == other.minLeft && maxLeft == other.maxLeft
+                    && minTop == other.minTop && maxTop == other.maxTop && Arrays.equals(black, other.black)
+                    && Arrays.equals(white, other.white) && Arrays.equals(empty, other.empty);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(black) * 31 + Arrays.hashCode(white);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.util.Random;
+
+
+/**
+ * Computes a Zobrist hash of a position which doesn't depend on the orientation of the board and
+ * on the colors of the stones : the hash is updated for the 8 symmetries of the board, with and
+ * without reversing the colors, and the canonical hash is the smallest of these 16 values.
+ * The color reversal can be disabled. Only black and white stones are hashed.
+ */
+final class PositionHash implements ReplayBoard.Listener {
+    static final int VARIANT_COUNT = 16;
+
+    private static final long _SEED = 0x5DEECE66DL;
+    private static final long[][][] _keysBySize = new long[27][][];
+
+    private final int _pointCount;
+    private final long[][] _keys;
+    private final long[] _hashes = new long[VARIANT_COUNT];
+    private final int _variantStep;
+
+
+    PositionHash(int size) {
+        this(size, true);
+    }
+
+    /**
+     * @param foldColors False to only use the symmetries of the board (the colors are never reversed).
+     */
+    PositionHash(int size, boolean foldColors) {
+        _pointCount = size * size;
+        _keys = getKeys(size);
+        _variantStep = foldColors ? 1 : 2;
+    }
+
+
+    @Override
+    public void onChange(int point, byte previousColor, byte color) {
+        if (previousColor == GoBoard.BLACK || previousColor == GoBoard.WHITE)
+            _toggle(point, previousColor);
+        if (color == GoBoard.BLACK || color == GoBoard.WHITE)
+            _toggle(point, color);
+    }
+
+    private void _toggle(int point, byte color) {
+        int index = (color - 1) * _pointCount + point;
+        for (int i = 0; i < VARIANT_COUNT; i += _variantStep)
+            _hashes[i] ^= _keys[i][index];
+    }
+
+    void reset() {
+        for (int i = 0; i < VARIANT_COUNT; i++)
+            _hashes[i] = 0;
+    }
+
+    /**
+     * Returns the smallest hash among the symmetries and color reversals of the position.
+     */
+    long getCanonicalHash() {
+        return _hashes[getCanonicalVariant()];
+    }
+
+    /**
+     * Returns the variant giving the canonical hash : (symmetry * 2 + reversed colors ? 1 : 0). When several
+     * variants give the same hash, the first one is returned, so the result only depends on the position.
+     */
+    int getCanonicalVariant() {
+        int variant = 0;
+        for (int i = _variantStep; i < VARIANT_COUNT; i += _variantStep) {
+            if (_hashes[i] < _hashes[variant])
+                variant = i;
+        }
+        return variant;
+    }
+
+    /**
+     * Returns the canonical hash of the specified intersections (as returned by {@link GoBoard#getBoardArray()}).
+     */
+    static long hash(int size, byte[] colors) {
+        PositionHash hash = new PositionHash(size);
+        for (int i = 0; i < colors.length; i++)
+            hash.onChange(i, GoBoard.EMPTY, colors[i]);
+        return hash.getCanonicalHash();
+    }
+
+    /**
+     * Returns the keys of each variant : keys[variant][(color - 1) * size * size + point].
+     * The variant is (symmetry * 2 + reversed colors ? 1 : 0).
+     */
+    static long[][] getKeys(int size) {
+        synchronized (_keysBySize) {
+            if (_keysBySize[size] != null)
+                return _keysBySize[size];
+
+            int pointCount = size * size;
+            long[] base = new long[2 * pointCount];
+            Random random = new Random(_SEED + size);
+            for (int i = 0; i < base.length; i++)
+                base[i] = random.nextLong();
+
+            long[][] keys = new long[VARIANT_COUNT][2 * pointCount];
+            for (int symmetry = 0; symmetry < 8; symmetry++) {
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        int point = y * size + x;
+                        int transformed = BoardSymmetry.transform(symmetry, x, y, size);
+                        keys[symmetry * 2][point] = base[transformed];
+                        keys[symmetry * 2][pointCount + point] = base[pointCount + transformed];
+                        keys[symmetry * 2 + 1][point] = base[pointCount + transformed];
+                        keys[symmetry * 2 + 1][pointCount + point] = base[transformed];
+                    }
+                }
+            }
+            _keysBySize[size] = keys;
+            return keys;
+        }
+    }
+}
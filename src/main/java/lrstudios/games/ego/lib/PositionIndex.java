@@ -0,0 +1,293 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * A memory-mapped index of the positions reached in the main line of a set of games. Each position
+ * is identified by a hash which doesn't depend on the orientation of the board or on the colors of the
+ * stones, and the postings (hash, game, move number) are sorted by hash so they can be found with a
+ * binary search. Files are created with a {@link Builder}.
+ * <p/>
+ * Hashes are 64 bits long, so different positions can match in very rare cases.
+ * All reads are absolute, so an index can be used by several threads at the same time.
+ */
+public final class PositionIndex {
+    public static final int MAGIC = 0x45475058; // "EGPX"
+
+    private static final int _VERSION = 1;
+    private static final int _HEADER_SIZE = 32;
+    private static final int _RECORD_SIZE = 16;
+    private static final int _CHUNK_SHIFT = 26;
+    private static final int _CHUNK_SIZE = 1 << _CHUNK_SHIFT;
+    private static final int _CHUNK_MASK = _CHUNK_SIZE - 1;
+
+    private final long _postingCount;
+    private final int _boardSize;
+    private final ByteBuffer[] _chunks;
+
+
+    /**
+     * Maps the specified file. The mappings stay valid until they are garbage collected.
+     */
+    public PositionIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("The file is too short");
+            }
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("This is not a position index");
+            if (header.getInt(4) != _VERSION)
+                throw new IOException("Unsupported position index version : " + header.getInt(4));
+
+            _postingCount = header.getLong(8);
+            _boardSize = header.getInt(16);
+            long length = _postingCount * _RECORD_SIZE;
+            if (_HEADER_SIZE + length > channel.size())
+                throw new IOException("The file is truncated");
+
+            int count = (int) ((length + _CHUNK_SIZE - 1) >>> _CHUNK_SHIFT);
+            _chunks = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << _CHUNK_SHIFT;
+                _chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, _HEADER_SIZE + start, Math.min(_CHUNK_SIZE, length - start));
+            }
+        }
+        finally {
+            Utils.closeObject(raf);
+        }
+    }
+
+
+    public long getPostingCount() {
+        return _postingCount;
+    }
+
+    /**
+     * Returns the size of the boards of the indexed games.
+     */
+    public int getBoardSize() {
+        return _boardSize;
+    }
+
+    /**
+     * Returns the hash used to find the specified position in an index.
+     */
+    public static long hashPosition(GoBoard board) {
+        return PositionHash.hash(board.getSize(), board.getBoardArray());
+    }
+
+    /**
+     * Returns all the games which reached the specified position (with any orientation or colors).
+     * The postings are sorted by game, then by move number.
+     */
+    public List<Posting> find(GoBoard board) {
+        if (board.getSize() != _boardSize)
+            return new ArrayList<>(0);
+        return find(hashPosition(board));
+    }
+
+    /**
+     * Returns the postings of the specified position hash (see {@link #hashPosition(GoBoard)}).
+     */
+    public List<Posting> find(long hash) {
+        long first = _lowerBound(hash);
+        ArrayList<Posting> postings = new ArrayList<>();
+        for (long i = first; i < _postingCount && _getHash(i) == hash; i++) {
+            ByteBuffer chunk = _chunk(i);
+            int offset = _offset(i);
+            postings.add(new Posting(chunk.getInt(offset + 8), chunk.getInt(offset + 12)));
+        }
+        return postings;
+    }
+
+    /**
+     * Returns the number of postings of the specified position hash, without reading them.
+     */
+    public long count(long hash) {
+        return _upperBound(hash) - _lowerBound(hash);
+    }
+
+    /**
+     * Returns the index of the first posting whose hash is greater than or equal to the specified one.
+     */
+    private long _lowerBound(long hash) {
+        long low = 0;
+        long high = _postingCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (_getHash(middle) < hash)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the first posting whose hash is greater than the specified one.
+     */
+    private long _upperBound(long hash) {
+        long low = 0;
+        long high = _postingCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (_getHash(middle) <= hash)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private long _getHash(long posting) {
+        return _chunk(posting).getLong(_offset(posting));
+    }
+
+    private ByteBuffer _chunk(long posting) {
+        return _chunks[(int) ((posting * _RECORD_SIZE) >>> _CHUNK_SHIFT)];
+    }
+
+    private static int _offset(long posting) {
+        return (int) ((posting * _RECORD_SIZE) & _CHUNK_MASK);
+    }
+
+
+    /**
+     * A game which reached a position, and the number of moves played in the main line at this point.
+     */
+    public static final class Posting {
+        public final int game;
+        public final int moveNumber;
+
+        public Posting(int game, int moveNumber) {
+            this.game = game;
+            this.moveNumber = moveNumber;
+        }
+
+        @Override
+        public String toString() {
+            return "game " + game + ", move " + moveNumber;
+        }
+    }
+
+
+    /**
+     * Collects the positions of a set of games in memory, then writes the sorted index.
+     * All the games must have the same board size.
+     */
+    public static final class Builder {
+        private final int _boardSize;
+        private final ReplayBoard _board;
+        private final PositionHash _hash;
+        private long[] _hashes = new long[4096];
+        private long[] _values = new long[4096];
+        private int _count;
+
+
+        public Builder(int boardSize) {
+            _boardSize = boardSize;
+            _hash = new PositionHash(boardSize);
+            _board = new ReplayBoard(boardSize, _hash);
+        }
+
+
+        public int getPostingCount() {
+            return _count;
+        }
+
+        /**
+         * Replays the main line of the specified game and adds each position to the index, unless it
+         * is empty or the same as the previous one. Games with another board size are ignored.
+         *
+         * @param gameId The identifier returned in the postings (for example, the index of the game in a library).
+         */
+        public void addGame(int gameId, GoGame game) {
+            if (game.info.boardSize != _boardSize)
+                return;
+
+            _board.clear();
+            long previousHash = 0;
+            int moveNumber = 0;
+            GameNode node = game.getBaseNode();
+            while (node != null) {
+                _board.apply(node);
+                if (node.color == GoBoard.BLACK || node.color == GoBoard.WHITE)
+                    moveNumber++;
+
+                long hash = _hash.getCanonicalHash();
+                if (hash != previousHash && hash != 0)
+                    _add(hash, gameId, moveNumber);
+                previousHash = hash;
+
+                node.ensureLoaded();
+                node = node.nextNodes.isEmpty() ? null : node.nextNodes.get(0);
+            }
+        }
+
+        private void _add(long hash, int gameId, int moveNumber) {
+            if (_count == _hashes.length) {
+                _hashes = Arrays.copyOf(_hashes, _count * 2);
+                _values = Arrays.copyOf(_values, _count * 2);
+            }
+            _hashes[_count] = hash;
+            _values[_count] = ((long) gameId << 32) | (moveNumber & 0xFFFFFFFFL);
+            _count++;
+        }
+
+        /**
+         * Sorts the postings and writes the index in the specified file.
+         */
+        public void save(File file) throws IOException {
+            // The sort is stable, so the postings of a position stay sorted by game and move number
+            Utils.sortByKey(_hashes, _values, _count);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(_VERSION);
+                out.writeLong(_count);
+                out.writeInt(_boardSize);
+                out.write(new byte[_HEADER_SIZE - 20]);
+                for (int i = 0; i < _count; i++) {
+                    out.writeLong(_hashes[i]);
+                    out.writeLong(_values[i]);
+                }
+            }
+            finally {
+                Utils.closeObject(out);
+            }
+        }
+    }
+}
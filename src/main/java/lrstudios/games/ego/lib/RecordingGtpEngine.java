@@ -0,0 +1,92 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import android.content.Context;
+
+import java.util.Properties;
+
+
+/**
+ * Wraps another {@link GtpEngine} and records every command sent to it (with its response and timing)
+ * in a {@link GtpSession}, which can be played back later with {@link ReplayGtpEngine}.
+ */
+public class RecordingGtpEngine extends GtpEngine {
+    private final GtpEngine _engine;
+    private final GtpSession _session;
+    private long _startTime = -1;
+
+
+    public RecordingGtpEngine(Context context, GtpEngine engine) {
+        this(context, engine, new GtpSession());
+    }
+
+    /**
+     * Creates an engine which appends all commands sent to the specified engine to an existing session.
+     */
+    public RecordingGtpEngine(Context context, GtpEngine engine, GtpSession session) {
+        super(context);
+        _engine = engine;
+        _session = session;
+    }
+
+
+    @Override
+    public boolean init(Properties properties) {
+        boolean success = _engine.init(properties);
+        _session.setEngineInfo(_engine.getName(), _engine.getVersion());
+        return success;
+    }
+
+    @Override
+    public String sendGtpCommand(String command) {
+        long start = System.nanoTime();
+        if (_startTime < 0)
+            _startTime = start;
+
+        String response = _engine.sendGtpCommand(command);
+        _session.add(command, response, start - _startTime, System.nanoTime() - start);
+        return response;
+    }
+
+    @Override
+    public String getName() {
+        return _engine.getName();
+    }
+
+    @Override
+    public String getVersion() {
+        return _engine.getVersion();
+    }
+
+
+    /**
+     * Returns the session which contains the recorded commands.
+     */
+    public GtpSession getSession() {
+        return _session;
+    }
+
+    /**
+     * Returns the engine which receives the commands.
+     */
+    public GtpEngine getEngine() {
+        return _engine;
+    }
+}
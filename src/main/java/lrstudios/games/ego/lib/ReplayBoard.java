@@ -0,0 +1,172 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+
+/**
+ * A minimal board used to replay games quickly : it only applies setup stones, moves and captures
+ * (suicides are allowed, as in SGF files), and reports each changed intersection to a listener.
+ * Intersections are numbered as in {@link GoBoard#getBoardArray()} (y * size + x).
+ */
+final class ReplayBoard {
+    /**
+     * Receives the changes of the board.
+     */
+    interface Listener {
+        void onChange(int point, byte previousColor, byte color);
+    }
+
+
+    private final int _size;
+    private final byte[] _colors;
+    private final Listener _listener;
+
+    // Group search state : points are marked with the current stamp instead of clearing an array
+    private final int[] _stack;
+    private final int[] _group;
+    private final int[] _visited;
+    private int _stamp;
+
+
+    ReplayBoard(int size, Listener listener) {
+        _size = size;
+        _colors = new byte[size * size];
+        _listener = listener;
+        _stack = new int[size * size];
+        _group = new int[size * size];
+        _visited = new int[size * size];
+    }
+
+
+    int getSize() {
+        return _size;
+    }
+
+    /**
+     * Returns the colors of the intersections (this is not a copy).
+     */
+    byte[] getColors() {
+        return _colors;
+    }
+
+    /**
+     * Removes all the stones.
+     */
+    void clear() {
+        for (int i = 0; i < _colors.length; i++)
+            set(i, GoBoard.EMPTY);
+    }
+
+    void set(int point, byte color) {
+        byte previous = _colors[point];
+        if (previous == color)
+            return;
+        _colors[point] = color;
+        if (_listener != null)
+            _listener.onChange(point, previous, color);
+    }
+
+    /**
+     * Applies the setup stones and the move of the specified node. Coordinates outside of the board are ignored.
+     */
+    void apply(GameNode node) {
+        if (node.setStones != null) {
+            for (int i = 0, count = node.setStones.size(); i < count; i++) {
+                LightCoords coords = node.setStones.get(i);
+                if (_isOnBoard(coords.x, coords.y))
+                    set(coords.y * _size + coords.x, coords.color);
+            }
+        }
+        if (node.color == GoBoard.BLACK || node.color == GoBoard.WHITE)
+            play(node.x, node.y, node.color);
+    }
+
+    /**
+     * Plays a move and removes the captured stones. Passes and moves outside of the board are ignored.
+     */
+    void play(int x, int y, byte color) {
+        if (!_isOnBoard(x, y))
+            return;
+
+        int point = y * _size + x;
+        set(point, color);
+        byte opponent = GoBoard.getOppositeColor(color);
+        if (x > 0 && _colors[point - 1] == opponent)
+            _removeIfDead(point - 1);
+        if (x < _size - 1 && _colors[point + 1] == opponent)
+            _removeIfDead(point + 1);
+        if (y > 0 && _colors[point - _size] == opponent)
+            _removeIfDead(point - _size);
+        if (y < _size - 1 && _colors[point + _size] == opponent)
+            _removeIfDead(point + _size);
+        _removeIfDead(point);
+    }
+
+    private boolean _isOnBoard(int x, int y) {
+        return x >= 0 && y >= 0 && x < _size && y < _size;
+    }
+
+    /**
+     * Removes the group containing the specified point if it has no liberty.
+     */
+    private void _removeIfDead(int start) {
+        byte color = _colors[start];
+        int stamp = ++_stamp;
+        int stackSize = 0;
+        int groupSize = 0;
+        _stack[stackSize++] = start;
+        _visited[start] = stamp;
+
+        while (stackSize > 0) {
+            int point = _stack[--stackSize];
+            _group[groupSize++] = point;
+            int x = point % _size;
+            for (int i = 0; i < 4; i++) {
+                int next;
+                if (i == 0) {
+                    if (x == 0) continue;
+                    next = point - 1;
+                }
+                else if (i == 1) {
+                    if (x == _size - 1) continue;
+                    next = point + 1;
+                }
+                else if (i == 2) {
+                    if (point < _size) continue;
+                    next = point - _size;
+                }
+                else {
+                    next = point + _size;
+                    if (next >= _colors.length) continue;
+                }
+
+                byte nextColor = _colors[next];
+                if (nextColor == GoBoard.EMPTY)
+                    return;
+                if (nextColor == color && _visited[next] != stamp) {
+                    _visited[next] = stamp;
+                    _stack[stackSize++] = next;
+                }
+            }
+        }
+
+        for (int i = 0; i < groupSize; i++)
+            set(_group[i], GoBoard.EMPTY);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Properties;
+
+
+/**
+ * A fake GTP engine which answers commands with the responses of a recorded {@link GtpSession}.
+ * Commands must be sent in the same order as they were recorded. This allows to measure the time spent
+ * by the client (parsing, game updates, autosaves, ...) without running a real engine.
+ */
+public class ReplayGtpEngine extends GtpEngine {
+    private static final String TAG = "ReplayGtpEngine";
+
+    private final GtpSession _session;
+    private float _speed = 1f;
+    private int _position;
+    private int _mismatchCount;
+    private long _lastResponseTime = -1;
+    private long _clientTime;
+
+
+    public ReplayGtpEngine(Context context, GtpSession session) {
+        super(context);
+        _session = session;
+    }
+
+
+    @Override
+    public boolean init(Properties properties) {
+        return true;
+    }
+
+    @Override
+    public String sendGtpCommand(String command) {
+        long start = System.nanoTime();
+        if (_lastResponseTime >= 0)
+            _clientTime += start - _lastResponseTime;
+
+        String response;
+        if (_position >= _session.size()) {
+            Log.w(TAG, "End of the recorded session reached (command: " + command + ")");
+            _mismatchCount++;
+            response = "? end of recorded session";
+        }
+        else {
+            GtpSession.Entry entry = _session.get(_position++);
+            if (!entry.command.equals(command)) {
+                Log.w(TAG, "Command mismatch at " + (_position - 1) + " : expected \"" + entry.command
+                        + "\", got \"" + command + "\"");
+                _mismatchCount++;
+            }
+            _waitUntil(start, entry.durationNanos);
+            response = entry.response;
+        }
+
+        _lastResponseTime = System.nanoTime();
+        return response;
+    }
+
+    @Override
+    public String getName() {
+        return _session.getEngineName();
+    }
+
+    @Override
+    public String getVersion() {
+        return _session.getEngineVersion();
+    }
+
+
+    /**
+     * Sets the replay speed : 1 answers commands with the recorded timing, 2 answers them twice faster,
+     * and so on. Set it to 0 to answer immediately.
+     */
+    public void setSpeed(float speed) {
+        _speed = speed;
+    }
+
+    /**
+     * Restarts the replay from the first recorded command, and resets the statistics.
+     */
+    public void rewind() {
+        _position = 0;
+        _mismatchCount = 0;
+        _lastResponseTime = -1;
+        _clientTime = 0;
+    }
+
+    /**
+     * Returns the number of commands which have been answered so far.
+     */
+    public int getPosition() {
+        return _position;
+    }
+
+    /**
+     * Returns true if all recorded commands have been answered.
+     */
+    public boolean isFinished() {
+        return _position >= _session.size();
+    }
+
+    /**
+     * Returns the number of commands which did not match the recorded ones.
+     */
+    public int getMismatchCount() {
+        return _mismatchCount;
+    }
+
+    /**
+     * Returns the time spent by the client between the response to a command and the next command,
+     * in nanoseconds.
+     */
+    public long getClientTimeNanos() {
+        return _clientTime;
+    }
+
+
+    private void _waitUntil(long start, long durationNanos) {
+        if (_speed <= 0f)
+            return;
+
+        long end = start + (long) (durationNanos / _speed);
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
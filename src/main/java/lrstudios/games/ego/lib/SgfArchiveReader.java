@@ -0,0 +1,452 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/**
+ * Parses the SGF files contained in an archive (zip, gzip or tar.gz) without extracting it : each entry
+ * is read in memory and parsed by a {@link SgfByteParser}, optionally on several threads.
+ * A gzip file which doesn't contain a tar archive is parsed as a single SGF file.
+ * <p/>
+ * The games are given to an {@link EntryConsumer} on the calling thread, in the order of the archive.
+ */
+public final class SgfArchiveReader {
+    /**
+     * Receives the parsed games of each SGF entry, in order.
+     */
+    public interface EntryConsumer {
+        void onEntry(String name, GoGame[] games) throws IOException;
+    }
+
+    /**
+     * Receives the progress of the reading, after each entry.
+     */
+    public interface ProgressListener {
+        /**
+         * @param totalBytes The size of the archive, or -1 if it is unknown.
+         */
+        void onProgress(int entryCount, long bytesRead, long totalBytes);
+    }
+
+
+    private static final Charset _UTF8 = Charset.forName("UTF-8");
+    private static final int _BUFFER_SIZE = 64 * 1024;
+    private static final int _TAR_BLOCK_SIZE = 512;
+
+    private final SgfParser.ParseOptions _parseOptions;
+    private final int _threadCount;
+    private ProgressListener _progressListener;
+    private volatile boolean _cancelled;
+
+    private CountingInputStream _counter;
+    private long _totalBytes;
+    private EntryConsumer _consumer;
+    private ExecutorService _executor;
+    private ArrayDeque<String> _pendingNames;
+    private ArrayDeque<Future<GoGame[]>> _pendingGames;
+    private int _entryCount;
+
+
+    /**
+     * Creates a reader which parses the entries on the calling thread.
+     */
+    public SgfArchiveReader(SgfParser.ParseOptions options) {
+        this(options, 1);
+    }
+
+    public SgfArchiveReader(SgfParser.ParseOptions options, int threadCount) {
+        _parseOptions = options;
+        _threadCount = Math.max(1, threadCount);
+    }
+
+
+    public void setProgressListener(ProgressListener listener) {
+        _progressListener = listener;
+    }
+
+    /**
+     * Stops the reading as soon as possible (this can be called from any thread). The entries which
+     * have already been given to the consumer are not affected.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    /**
+     * Reads the specified archive. The type of the archive is found from its content.
+     *
+     * @return The number of SGF entries parsed.
+     * @throws IOException An error occurred during reading (the archive may be corrupted).
+     */
+    public int read(File file, EntryConsumer consumer) throws IOException {
+        String name = file.getName();
+        if (name.toLowerCase().endsWith(".gz"))
+            name = name.substring(0, name.length() - 3);
+
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            return read(stream, name, file.length(), consumer);
+        }
+        finally {
+            Utils.closeObject(stream);
+        }
+    }
+
+    /**
+     * Reads an archive from the specified stream (which is not closed).
+     *
+     * @param name       The name given to the entry when the stream is a plain or gzipped SGF file.
+     * @param totalBytes The size of the archive given to the progress listener (-1 if unknown).
+     * @return The number of SGF entries parsed.
+     * @throws IOException An error occurred during reading (the archive may be corrupted).
+     */
+    public int read(InputStream stream, String name, long totalBytes, EntryConsumer consumer) throws IOException {
+        _counter = new CountingInputStream(stream);
+        _totalBytes = totalBytes;
+        _consumer = consumer;
+        _pendingNames = new ArrayDeque<>();
+        _pendingGames = new ArrayDeque<>();
+        _entryCount = 0;
+        if (_threadCount > 1) {
+            _executor = Utils.newDaemonThreadPool(_threadCount, "SgfArchiveReader");
+        }
+
+        try {
+            BufferedInputStream input = new BufferedInputStream(_counter, _BUFFER_SIZE);
+            input.mark(2);
+            int first = input.read();
+            int second = input.read();
+            input.reset();
+
+            if (first == 'P' && second == 'K') {
+                _readZip(new ZipInputStream(input));
+            }
+            else if (first == 0x1F && second == 0x8B) {
+                BufferedInputStream gzipInput = new BufferedInputStream(new GZIPInputStream(input, _BUFFER_SIZE), _BUFFER_SIZE);
+                if (_isTar(gzipInput))
+                    _readTar(gzipInput);
+                else
+                    _addEntry(name, _readEntry(gzipInput, -1));
+            }
+            else {
+                _addEntry(name, _readEntry(input, -1));
+            }
+
+            while (!_pendingGames.isEmpty() && !_cancelled)
+                _deliver();
+            return _entryCount;
+        }
+        finally {
+            for (Future<GoGame[]> future : _pendingGames)
+                future.cancel(false);
+            if (_executor != null)
+                _executor.shutdown();
+            _executor = null;
+            _pendingNames = null;
+            _pendingGames = null;
+            _consumer = null;
+            _counter = null;
+        }
+    }
+
+
+    private void _readZip(ZipInputStream input) throws IOException {
+        ZipEntry entry;
+        while (!_cancelled && (entry = input.getNextEntry()) != null) {
+            if (!entry.isDirectory() && _isSgfFile(entry.getName()))
+                _addEntry(entry.getName(), _readEntry(input, entry.getSize()));
+            input.closeEntry();
+        }
+    }
+
+    private static boolean _isTar(BufferedInputStream input) throws IOException {
+        byte[] header = new byte[_TAR_BLOCK_SIZE];
+        input.mark(_TAR_BLOCK_SIZE);
+        int length = 0;
+        int count;
+        while (length < header.length && (count = input.read(header, length, header.length - length)) > 0)
+            length += count;
+        input.reset();
+        return length == header.length && header[257] == 'u' && header[258] == 's' && header[259] == 't'
+                && header[260] == 'a' && header[261] == 'r';
+    }
+
+    private void _readTar(InputStream input) throws IOException {
+        byte[] header = new byte[_TAR_BLOCK_SIZE];
+        String longName = null;
+        while (!_cancelled) {
+            if (!_readBlock(input, header) || header[0] == 0)
+                break;
+
+            long size = _parseOctal(header, 124, 12);
+            byte type = header[156];
+            long padding = (_TAR_BLOCK_SIZE - size % _TAR_BLOCK_SIZE) % _TAR_BLOCK_SIZE;
+            String name = (longName != null) ? longName : _getTarName(header);
+            longName = null;
+
+            if (type == 'L') {
+                // GNU long name : the data is the name of the next entry
+                byte[] data = _readEntry(input, size);
+                longName = _getString(data, 0, data.length);
+            }
+            else if (type == 'x') {
+                // PAX extended header : the "path" record replaces the name of the next entry
+                longName = _getPaxPath(_readEntry(input, size));
+            }
+            else if ((type == '0' || type == 0) && _isSgfFile(name)) {
+                _addEntry(name, _readEntry(input, size));
+            }
+            else {
+                padding += size;
+            }
+            _skip(input, padding);
+        }
+    }
+
+    /**
+     * Returns the value of the "path" record of a PAX header (records are written as "length key=value\n"),
+     * or null if there is none.
+     */
+    private static String _getPaxPath(byte[] data) {
+        int pos = 0;
+        while (pos < data.length) {
+            int length = 0;
+            int i = pos;
+            while (i < data.length && data[i] >= '0' && data[i] <= '9')
+                length = length * 10 + (data[i++] - '0');
+            if (length <= 0 || pos + length > data.length)
+                return null;
+
+            String record = new String(data, i + 1, pos + length - i - 2, _UTF8);
+            if (record.startsWith("path="))
+                return record.substring(5);
+            pos += length;
+        }
+        return null;
+    }
+
+    private static String _getTarName(byte[] header) {
+        String name = _getString(header, 0, 100);
+        String prefix = _getString(header, 345, 155);
+        return (prefix.length() > 0) ? prefix + '/' + name : name;
+    }
+
+    /**
+     * Returns the string stored in a field of a tar header, up to the first null character.
+     */
+    private static String _getString(byte[] data, int start, int length) {
+        int end = start;
+        while (end < start + length && data[end] != 0)
+            end++;
+        return new String(data, start, end - start, _UTF8);
+    }
+
+    private static long _parseOctal(byte[] data, int start, int length) throws IOException {
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            byte ch = data[i];
+            if (ch == 0 || ch == ' ') {
+                if (value > 0)
+                    break;
+                continue;
+            }
+            if (ch < '0' || ch > '7')
+                throw new IOException("Invalid tar header");
+            value = value * 8 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static boolean _readBlock(InputStream input, byte[] block) throws IOException {
+        int length = 0;
+        int count;
+        while (length < block.length && (count = input.read(block, length, block.length - length)) > 0)
+            length += count;
+        if (length > 0 && length < block.length)
+            throw new EOFException("Unexpected end of the tar archive");
+        return length == block.length;
+    }
+
+    private static void _skip(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                if (input.read() < 0)
+                    throw new EOFException("Unexpected end of the archive");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static boolean _isSgfFile(String name) {
+        return name.toLowerCase().endsWith(".sgf");
+    }
+
+    /**
+     * Reads the data of an entry (its size can be -1 if it is unknown).
+     */
+    private static byte[] _readEntry(InputStream input, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("The entry is too large : " + size + " bytes");
+
+        byte[] data = new byte[(size >= 0) ? (int) size : _BUFFER_SIZE];
+        int length = 0;
+        int count;
+        while (true) {
+            if (length == data.length) {
+                if (size >= 0)
+                    break;
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            if ((count = input.read(data, length, data.length - length)) < 0)
+                break;
+            length += count;
+        }
+        if (size >= 0 && length < size)
+            throw new EOFException("Unexpected end of the archive");
+        return (length == data.length) ? data : Arrays.copyOf(data, length);
+    }
+
+    private void _addEntry(String name, byte[] data) throws IOException {
+        ParseTask task = new ParseTask(ByteBuffer.wrap(data), _parseOptions);
+        if (_executor == null) {
+            _consumer.onEntry(name, task.call());
+            _notifyProgress();
+            return;
+        }
+
+        if (_pendingGames.size() >= _threadCount * 4)
+            _deliver();
+        _pendingNames.add(name);
+        _pendingGames.add(_executor.submit(task));
+    }
+
+    private void _deliver() throws IOException {
+        String name = _pendingNames.poll();
+        GoGame[] games;
+        try {
+            games = _pendingGames.poll().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The reading has been interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException("Cannot parse " + name, cause);
+        }
+        _consumer.onEntry(name, games);
+        _notifyProgress();
+    }
+
+    private void _notifyProgress() {
+        _entryCount++;
+        if (_progressListener != null)
+            _progressListener.onProgress(_entryCount, _counter.getCount(), _totalBytes);
+    }
+
+
+    private static final class ParseTask implements Callable<GoGame[]> {
+        private final ByteBuffer _data;
+        private final SgfParser.ParseOptions _options;
+
+        public ParseTask(ByteBuffer data, SgfParser.ParseOptions options) {
+            _data = data;
+            _options = options;
+        }
+
+        @Override
+        public GoGame[] call() throws IOException {
+            return new SgfByteParser(_options).parse(_data);
+        }
+    }
+
+    /**
+     * Counts the bytes read from the archive, for the progress listener.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long _count;
+
+        public CountingInputStream(InputStream stream) {
+            super(stream);
+        }
+
+        public long getCount() {
+            return _count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0)
+                _count++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0)
+                _count += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            _count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Parses the games of a large SGF collection on several threads. The collection is split on the
+ * top-level game trees by a {@link SgfGameScanner}, then each tree is parsed by a {@link SgfByteParser}.
+ * <p/>
+ * The games are given to a {@link GameConsumer} on the calling thread, in the order of the collection.
+ * The number of games parsed in advance is limited, so the memory used doesn't depend on the size
+ * of the collection.
+ */
+public final class SgfCollectionParser {
+    /**
+     * Receives the parsed games, in order.
+     */
+    public interface GameConsumer {
+        /**
+         * Called for each game of the collection (index starts at 0).
+         */
+        void onGame(int index, GoGame game) throws IOException;
+    }
+
+
+    private final SgfParser.ParseOptions _parseOptions;
+    private final int _threadCount;
+    private int _maxPendingGames;
+
+
+    /**
+     * Creates a parser using one thread per available processor.
+     */
+    public SgfCollectionParser(SgfParser.ParseOptions options) {
+        this(options, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SgfCollectionParser(SgfParser.ParseOptions options, int threadCount) {
+        _parseOptions = options;
+        _threadCount = Math.max(1, threadCount);
+        _maxPendingGames = _threadCount * 4;
+    }
+
+
+    /**
+     * Sets the maximum number of games which can be parsed in advance (the default value is 4 games per thread).
+     */
+    public void setMaxPendingGames(int count) {
+        _maxPendingGames = Math.max(1, count);
+    }
+
+    /**
+     * Parses the specified file, which is memory-mapped.
+     *
+     * @return The number of games found.
+     */
+    public int parse(File file, GameConsumer consumer) throws IOException {
+        return parse(SgfByteParser.mapFile(file), consumer);
+    }
+
+    /**
+     * Parses the collection between the position and the limit of the specified buffer.
+     *
+     * @return The number of games found.
+     */
+    public int parse(ByteBuffer buffer, GameConsumer consumer) throws IOException {
+        ExecutorService executor = Utils.newDaemonThreadPool(_threadCount, "SgfCollectionParser");
+
+        ArrayDeque<Future<GoGame[]>> pending = new ArrayDeque<>(_maxPendingGames);
+        int gameCount = 0;
+        try {
+            SgfGameScanner scanner = new SgfGameScanner(buffer);
+            while (scanner.next()) {
+                if (pending.size() >= _maxPendingGames)
+                    gameCount = _deliver(pending.poll(), consumer, gameCount);
+                pending.add(executor.submit(new ParseTask(scanner.getGame(), _parseOptions)));
+            }
+            while (!pending.isEmpty())
+                gameCount = _deliver(pending.poll(), consumer, gameCount);
+        }
+        finally {
+            for (Future<GoGame[]> future : pending)
+                future.cancel(false);
+            executor.shutdown();
+        }
+        return gameCount;
+    }
+
+    private static int _deliver(Future<GoGame[]> future, GameConsumer consumer, int gameCount) throws IOException {
+        GoGame[] games;
+        try {
+            games = future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The parsing has been interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException("Cannot parse game " + gameCount, cause);
+        }
+
+        for (GoGame game : games)
+            consumer.onGame(gameCount++, game);
+        return gameCount;
+    }
+
+
+    private static final class ParseTask implements Callable<GoGame[]> {
+        private final ByteBuffer _game;
+        private final SgfParser.ParseOptions _options;
+
+        public ParseTask(ByteBuffer game, SgfParser.ParseOptions options) {
+            _game = game;
+            _options = options;
+        }
+
+        @Override
+        public GoGame[] call() throws IOException {
+            return new SgfByteParser(_options).parse(_game);
+        }
+    }
+}
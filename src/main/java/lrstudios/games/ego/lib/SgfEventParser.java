@@ -0,0 +1,299 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+
+/**
+ * Reads SGF data and reports its structure to a {@link Handler}, without building any game tree, so
+ * collections of any size can be processed in constant memory (the memory used only depends on
+ * the longest property value).
+ * <p/>
+ * The values given to the handler are only valid during the call : they are reused for the next value.
+ * Like the other parsers, the values are decoded in UTF-8 and escaped characters are left as they are.
+ */
+public final class SgfEventParser {
+    /**
+     * Receives the parsing events.
+     */
+    public interface Handler {
+        /**
+         * A top-level game tree starts (index starts at 0).
+         */
+        void startGame(int index);
+
+        void endGame(int index);
+
+        /**
+         * A variation starts inside a game tree (depth is 1 for the variations of the main tree).
+         */
+        void startVariation(int depth);
+
+        void endVariation(int depth);
+
+        /**
+         * A new node starts : the following properties belong to it.
+         */
+        void startNode();
+
+        /**
+         * A property value has been read. A property with several values is reported once for each value.
+         *
+         * @param type       One of the SgfParser.PROP_* constants, or PROP_UNDEFINED for an unknown property.
+         * @param identifier The property identifier, as written in the file.
+         */
+        void property(int type, CharSequence identifier, CharSequence value);
+    }
+
+
+    private static final int _BUFFER_SIZE = 65536;
+    private static final int _MAX_IDENTIFIER_LENGTH = 16;
+    private static final int _UNKNOWN_ID = -1;
+
+    private final Handler _handler;
+    private final CharsetDecoder _decoder;
+    private boolean _stopped;
+    private long _base;
+    private long _position;
+
+    // Parsing state, kept between two chunks of data
+    private int _depth;
+    private int _gameCount;
+    private boolean _inValue;
+    private boolean _valueRead;
+    private byte _previous;
+    private int _propertyType;
+    private int _identifier;
+    private final char[] _identifierChars = new char[_MAX_IDENTIFIER_LENGTH];
+    private int _identifierLength;
+    private final CharBuffer _identifierView = CharBuffer.wrap(_identifierChars);
+    private final CharBuffer _lastIdentifierView = CharBuffer.allocate(_MAX_IDENTIFIER_LENGTH);
+    private byte[] _valueBytes = new byte[256];
+    private int _valueLength;
+    private ByteBuffer _valueBuffer = ByteBuffer.wrap(_valueBytes);
+    private CharBuffer _value = CharBuffer.allocate(256);
+
+
+    public SgfEventParser(Handler handler) {
+        _handler = handler;
+        _decoder = Charset.forName("UTF-8").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+
+    /**
+     * Stops the parsing : this can be called by the handler when it doesn't need more data.
+     */
+    public void stop() {
+        _stopped = true;
+    }
+
+    /**
+     * Returns the position of the character which produced the current event, from the start of the data.
+     * It can be called by the handler to know where a game starts or ends, for example.
+     */
+    public long getPosition() {
+        return _position;
+    }
+
+    /**
+     * Reads the specified stream until its end (the stream is not closed).
+     *
+     * @return The number of games found.
+     */
+    public int parse(InputStream stream) throws IOException {
+        _reset();
+        byte[] buffer = new byte[_BUFFER_SIZE];
+        int read;
+        while (!_stopped && (read = stream.read(buffer)) >= 0)
+            _process(buffer, read);
+        _finish();
+        return _gameCount;
+    }
+
+    /**
+     * Reads the data between the position and the limit of the specified buffer (the position of the buffer
+     * is not modified).
+     *
+     * @return The number of games found.
+     */
+    public int parse(ByteBuffer data) throws IOException {
+        _reset();
+        ByteBuffer input = data.duplicate();
+        byte[] buffer = new byte[Math.min(_BUFFER_SIZE, Math.max(input.remaining(), 1))];
+        while (!_stopped && input.hasRemaining()) {
+            int length = Math.min(buffer.length, input.remaining());
+            input.get(buffer, 0, length);
+            _process(buffer, length);
+        }
+        _finish();
+        return _gameCount;
+    }
+
+    private void _reset() {
+        _stopped = false;
+        _base = 0;
+        _position = 0;
+        _depth = 0;
+        _gameCount = 0;
+        _inValue = false;
+        _valueRead = false;
+        _identifierLength = 0;
+        _identifier = 0;
+        _propertyType = SgfParser.PROP_UNDEFINED;
+    }
+
+    private void _finish() {
+        // Close the unterminated variations
+        while (!_stopped && _depth > 0)
+            _closeParenthesis();
+    }
+
+    private void _process(byte[] buffer, int length) {
+        final Handler handler = _handler;
+        for (int i = 0; i < length && !_stopped; i++) {
+            byte ch = buffer[i];
+            _position = _base + i;
+            if (_inValue) {
+                // A ']' preceded by a backslash doesn't end the value
+                if (ch == ']' && _previous != '\\') {
+                    _inValue = false;
+                    handler.property(_propertyType, _lastIdentifierView, _decodeValue());
+                }
+                else {
+                    if (_valueLength == _valueBytes.length) {
+                        _valueBytes = Arrays.copyOf(_valueBytes, _valueLength * 2);
+                        _valueBuffer = ByteBuffer.wrap(_valueBytes);
+                    }
+                    _valueBytes[_valueLength++] = ch;
+                }
+                _previous = ch;
+                continue;
+            }
+
+            switch (ch) {
+                case '[':
+                    if (!_valueRead || _identifierLength > 0) {
+                        _propertyType = (_identifierLength > 0 && _identifier != _UNKNOWN_ID)
+                                ? SgfByteParser.getPropertyType(_identifier) : SgfParser.PROP_UNDEFINED;
+                        _lastIdentifierView.clear();
+                        _lastIdentifierView.put(_identifierChars, 0, Math.min(_identifierLength, _MAX_IDENTIFIER_LENGTH));
+                        _lastIdentifierView.flip();
+                        _identifierLength = 0;
+                    }
+                    _inValue = true;
+                    _valueRead = true;
+                    _valueLength = 0;
+                    _previous = 0;
+                    break;
+
+                case '(':
+                    _endProperties();
+                    _depth++;
+                    if (_depth == 1)
+                        handler.startGame(_gameCount);
+                    else
+                        handler.startVariation(_depth - 1);
+                    break;
+
+                case ')':
+                    _endProperties();
+                    if (_depth > 0)
+                        _closeParenthesis();
+                    break;
+
+                case ';':
+                    _endProperties();
+                    handler.startNode();
+                    break;
+
+                case ' ':
+                case '\n':
+                case '\r':
+                case '\t':
+                    break;
+
+                default:
+                    if (_identifierLength == 0)
+                        _identifier = 0;
+                    if (ch >= 'A' && ch <= 'Z' && _identifierLength < 2 && _identifier != _UNKNOWN_ID)
+                        _identifier = _identifier * 27 + (ch - 'A' + 1);
+                    else
+                        _identifier = _UNKNOWN_ID;
+                    if (_identifierLength < _MAX_IDENTIFIER_LENGTH)
+                        _identifierChars[_identifierLength] = (char) (ch & 0xFF);
+                    _identifierLength++;
+                    break;
+            }
+        }
+        _base += length;
+    }
+
+    private void _endProperties() {
+        _valueRead = false;
+        _identifierLength = 0;
+    }
+
+    private void _closeParenthesis() {
+        _depth--;
+        if (_depth == 0)
+            _handler.endGame(_gameCount++);
+        else
+            _handler.endVariation(_depth);
+    }
+
+    private CharBuffer _decodeValue() {
+        int length = _valueLength;
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            if (_valueBytes[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+
+        if (_value.capacity() < length)
+            _value = CharBuffer.allocate(Math.max(length, _value.capacity() * 2));
+        _value.clear();
+        if (ascii) {
+            char[] chars = _value.array();
+            for (int i = 0; i < length; i++)
+                chars[i] = (char) _valueBytes[i];
+            _value.limit(length);
+            return _value;
+        }
+
+        _valueBuffer.clear();
+        _valueBuffer.limit(length);
+        _decoder.reset();
+        _decoder.decode(_valueBuffer, _value, true);
+        _decoder.flush(_value);
+        _value.flip();
+        return _value;
+    }
+}
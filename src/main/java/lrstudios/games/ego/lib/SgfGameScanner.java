@@ -0,0 +1,118 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Finds the boundaries of the game trees of a SGF collection, without parsing them : each call to
+ * {@link #next()} moves to the next top-level '(' ... ')' range. Property values are skipped, so parentheses
+ * in comments are ignored.
+ */
+public final class SgfGameScanner {
+    private final ByteBuffer _buffer;
+    private final int _limit;
+    private int _pos;
+    private int _start = -1;
+    private int _end = -1;
+
+
+    /**
+     * Creates a scanner for the data between the position and the limit of the specified buffer
+     * (the position of the buffer is not modified).
+     */
+    public SgfGameScanner(ByteBuffer buffer) {
+        _buffer = buffer;
+        _pos = buffer.position();
+        _limit = buffer.limit();
+    }
+
+
+    /**
+     * Moves to the next game tree. Returns false if there are no more games.
+     * An unterminated game ends at the limit of the buffer.
+     */
+    public boolean next() {
+        final ByteBuffer buffer = _buffer;
+        final int limit = _limit;
+        int pos = _pos;
+        int depth = 0;
+        boolean inValue = false;
+        byte previous = 0;
+
+        while (pos < limit) {
+            byte ch = buffer.get(pos++);
+            if (inValue) {
+                // Same rule as the parsers : a ']' preceded by a backslash doesn't end the value
+                if (ch == ']' && previous != '\\')
+                    inValue = false;
+                previous = ch;
+            }
+            else if (ch == '[') {
+                inValue = true;
+                previous = 0;
+            }
+            else if (ch == '(') {
+                if (depth++ == 0)
+                    _start = pos - 1;
+            }
+            else if (ch == ')' && depth > 0) {
+                if (--depth == 0) {
+                    _end = pos;
+                    _pos = pos;
+                    return true;
+                }
+            }
+        }
+
+        _pos = limit;
+        if (depth > 0) {
+            _end = limit;
+            return true;
+        }
+        _start = _end = -1;
+        return false;
+    }
+
+    /**
+     * Returns the position of the '(' starting the current game.
+     */
+    public int getStart() {
+        return _start;
+    }
+
+    /**
+     * Returns the position following the ')' ending the current game.
+     */
+    public int getEnd() {
+        return _end;
+    }
+
+    /**
+     * Returns a view of the current game : the position and the limit of the returned buffer
+     * are the boundaries of the game.
+     */
+    public ByteBuffer getGame() {
+        ByteBuffer game = _buffer.duplicate();
+        game.limit(_end);
+        game.position(_start);
+        return game;
+    }
+}
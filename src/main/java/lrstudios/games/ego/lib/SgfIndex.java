@@ -0,0 +1,324 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * An index of the games of a SGF collection : the position of each game in the file, and the main
+ * properties of its root node. It is built by reading the file once with a {@link SgfEventParser} (no game
+ * tree is created), and saved in a sidecar file, so the game list of a large collection can be displayed
+ * immediately. A game is only parsed when it is requested.
+ */
+public final class SgfIndex {
+    public static final String SIDECAR_EXTENSION = ".idx";
+
+    private static final int _MAGIC = 0x45474958; // "EGIX"
+    private static final int _VERSION = 1;
+
+    private final File _sgfFile;
+    private final ArrayList<Entry> _entries;
+
+
+    private SgfIndex(File sgfFile, ArrayList<Entry> entries) {
+        _sgfFile = sgfFile;
+        _entries = entries;
+    }
+
+
+    /**
+     * Returns the index of the specified SGF file : the sidecar file is used if it is up to date,
+     * else the index is built and saved.
+     */
+    public static SgfIndex open(File sgfFile) throws IOException {
+        File sidecar = getSidecarFile(sgfFile);
+        if (sidecar.exists()) {
+            try {
+                SgfIndex index = load(sgfFile, sidecar);
+                if (index != null)
+                    return index;
+            }
+            catch (IOException e) {
+                // The sidecar is corrupted (for example truncated by a crash), it is replaced below
+                sidecar.delete();
+            }
+            catch (RuntimeException e) {
+                sidecar.delete();
+            }
+        }
+
+        SgfIndex index = build(sgfFile);
+        try {
+            index.save(sidecar);
+        }
+        catch (IOException e) {
+            // The collection may be in a read-only directory, the index will be built again next time
+            sidecar.delete();
+        }
+        return index;
+    }
+
+    public static File getSidecarFile(File sgfFile) {
+        return new File(sgfFile.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Builds the index of the specified SGF file.
+     */
+    public static SgfIndex build(File sgfFile) throws IOException {
+        IndexHandler handler = new IndexHandler();
+        InputStream stream = new FileInputStream(sgfFile);
+        try {
+            SgfEventParser parser = new SgfEventParser(handler);
+            handler.parser = parser;
+            parser.parse(stream);
+        }
+        finally {
+            Utils.closeObject(stream);
+        }
+        return new SgfIndex(sgfFile, handler.entries);
+    }
+
+    /**
+     * Loads the index saved in the specified sidecar file. Returns null if it doesn't match the current
+     * state of the SGF file.
+     */
+    public static SgfIndex load(File sgfFile, File sidecar) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 8192));
+        try {
+            if (in.readInt() != _MAGIC || in.readInt() != _VERSION)
+                return null;
+            if (in.readLong() != sgfFile.length() || in.readLong() != sgfFile.lastModified())
+                return null;
+
+            int count = in.readInt();
+            if (count < 0)
+                throw new IOException("The index is corrupted");
+            ArrayList<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readLong());
+                entry.length = in.readInt();
+                entry.boardSize = in.readInt();
+                entry.komi = in.readDouble();
+                entry.blackName = Utils.readString(in);
+                entry.whiteName = Utils.readString(in);
+                entry.date = Utils.readString(in);
+                entry.result = Utils.readString(in);
+                entry.event = Utils.readString(in);
+                entries.add(entry);
+            }
+            return new SgfIndex(sgfFile, entries);
+        }
+        finally {
+            Utils.closeObject(in);
+        }
+    }
+
+    /**
+     * Saves the index in the specified sidecar file. The index is written in a temporary file which then
+     * replaces the sidecar, so an interrupted save never leaves a partial sidecar.
+     */
+    public void save(File sidecar) throws IOException {
+        File tempFile = new File(sidecar.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 8192));
+        try {
+            out.writeInt(_MAGIC);
+            out.writeInt(_VERSION);
+            out.writeLong(_sgfFile.length());
+            out.writeLong(_sgfFile.lastModified());
+            out.writeInt(_entries.size());
+            for (Entry entry : _entries) {
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+                out.writeInt(entry.boardSize);
+                out.writeDouble(entry.komi);
+                Utils.writeString(out, entry.blackName);
+                Utils.writeString(out, entry.whiteName);
+                Utils.writeString(out, entry.date);
+                Utils.writeString(out, entry.result);
+                Utils.writeString(out, entry.event);
+            }
+            out.close();
+            out = null;
+        }
+        finally {
+            if (out != null) {
+                Utils.closeObject(out);
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(sidecar)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace the index " + sidecar);
+        }
+    }
+
+
+    public File getSgfFile() {
+        return _sgfFile;
+    }
+
+    public int getGameCount() {
+        return _entries.size();
+    }
+
+    public Entry getEntry(int index) {
+        return _entries.get(index);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(_entries);
+    }
+
+    /**
+     * Parses the specified game, reading only its part of the SGF file.
+     */
+    public GoGame parseGame(int index, SgfParser.ParseOptions options) throws IOException {
+        Entry entry = _entries.get(index);
+        byte[] data = new byte[entry.length];
+        RandomAccessFile raf = new RandomAccessFile(_sgfFile, "r");
+        try {
+            raf.seek(entry.offset);
+            raf.readFully(data);
+        }
+        finally {
+            Utils.closeObject(raf);
+        }
+
+        GoGame[] games = new SgfByteParser(options).parse(ByteBuffer.wrap(data));
+        if (games.length == 0)
+            throw new IOException("The game " + index + " is empty");
+        return games[0];
+    }
+
+
+    /**
+     * The position and the main properties of a game (the properties which are not set are null).
+     */
+    public static final class Entry {
+        /**
+         * The position of the '(' starting the game in the SGF file.
+         */
+        public final long offset;
+        /**
+         * The number of bytes of the game, parentheses included.
+         */
+        public int length;
+        public int boardSize = 19;
+        public double komi = 6.5;
+        public String blackName;
+        public String whiteName;
+        public String date;
+        public String result;
+        public String event;
+
+        Entry(long offset) {
+            this.offset = offset;
+        }
+    }
+
+
+    private static final class IndexHandler implements SgfEventParser.Handler {
+        public final ArrayList<Entry> entries = new ArrayList<>();
+        public SgfEventParser parser;
+        private Entry _entry;
+        private int _nodeCount;
+
+        @Override
+        public void startGame(int index) {
+            _entry = new Entry(parser.getPosition());
+            _nodeCount = 0;
+        }
+
+        @Override
+        public void endGame(int index) {
+            long length = parser.getPosition() + 1 - _entry.offset;
+            _entry.length = (int) Math.min(length, Integer.MAX_VALUE);
+            entries.add(_entry);
+        }
+
+        @Override
+        public void startVariation(int depth) {
+            _nodeCount = 2; // The root node ends at the first variation
+        }
+
+        @Override
+        public void endVariation(int depth) {
+        }
+
+        @Override
+        public void startNode() {
+            _nodeCount++;
+        }
+
+        @Override
+        public void property(int type, CharSequence identifier, CharSequence value) {
+            if (_nodeCount != 1)
+                return;
+
+            switch (type) {
+                case SgfParser.PROP_PLAYER_BLACK:
+                    _entry.blackName = value.toString().trim();
+                    break;
+                case SgfParser.PROP_PLAYER_WHITE:
+                    _entry.whiteName = value.toString().trim();
+                    break;
+                case SgfParser.PROP_DATE:
+                    _entry.date = value.toString();
+                    break;
+                case SgfParser.PROP_RESULT:
+                    _entry.result = value.toString();
+                    break;
+                case SgfParser.PROP_EVENT:
+                    _entry.event = value.toString();
+                    break;
+                case SgfParser.PROP_SIZE:
+                    try {
+                        String size = value.toString().trim();
+                        int separator = size.indexOf(':');
+                        _entry.boardSize = Integer.parseInt(separator >= 0 ? size.substring(0, separator) : size);
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                    break;
+                case SgfParser.PROP_KOMI:
+                    try {
+                        _entry.komi = SgfParser.parseKomi(value.toString().trim(), '.');
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Imports all the SGF files of a directory tree into a {@link MappedGameTree} library, and writes a
+ * metadata file describing each imported game (see {@link #loadMetadata(File)}).
+ * <p/>
+ * The import runs as a pipeline of stages connected by bounded queues, so a slow stage blocks the
+ * previous ones instead of filling the memory : file discovery (one thread), parsing and validation
+ * (a configurable number of threads each), and writing (on the calling thread). Games are written in
+ * the order they come out of the pipeline, which depends on the scheduling when several threads are used.
+ */
+public final class SgfLibraryImporter {
+    public static final String STAGE_DISCOVERY = "discovery";
+    public static final String STAGE_PARSING = "parsing";
+    public static final String STAGE_VALIDATION = "validation";
+    public static final String STAGE_WRITING = "writing";
+
+    private static final int _METADATA_MAGIC = 0x45474C4D; // "EGLM"
+    private static final int _METADATA_VERSION = 1;
+    private static final int _MAX_BOARD_SIZE = 26;
+
+    // Markers put in the queues after the last item
+    private static final File _NO_MORE_FILES = new File("");
+    private static final ParsedFile _NO_MORE_GAMES = new ParsedFile(null, null);
+
+    private final SgfParser.ParseOptions _parseOptions;
+    private int _parseThreads;
+    private int _validationThreads = 1;
+    private int _queueCapacity = 256;
+
+    private volatile Throwable _error;
+
+
+    public SgfLibraryImporter(SgfParser.ParseOptions options) {
+        _parseOptions = options;
+        _parseThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+
+    /**
+     * Sets the number of threads parsing the files (default : the number of processors minus one).
+     */
+    public void setParseThreads(int count) {
+        _parseThreads = Math.max(1, count);
+    }
+
+    /**
+     * Sets the number of threads validating the parsed games (default : 1).
+     */
+    public void setValidationThreads(int count) {
+        _validationThreads = Math.max(1, count);
+    }
+
+    /**
+     * Sets the capacity of the queues between the stages (default : 256 items).
+     */
+    public void setQueueCapacity(int capacity) {
+        _queueCapacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Imports the SGF files found in the specified directory and its sub-directories.
+     *
+     * @param library  The library to create (see {@link MappedGameTree}).
+     * @param metadata The metadata file to create.
+     * @throws IOException An error occurred while writing the library (files which cannot be read
+     *                     or parsed are only counted in the result).
+     */
+    public Result importDirectory(File directory, File library, File metadata) throws IOException {
+        return importDirectory(directory, library, metadata, null);
+    }
+
+    /**
+     * Imports the SGF files found in the specified directory and its sub-directories, and also writes
+     * the game informations in a {@link MetadataStore} for fast filtering.
+     *
+     * @param store The metadata store to create, or null.
+     */
+    public Result importDirectory(File directory, File library, File metadata, File store) throws IOException {
+        final Result result = new Result();
+        final StageStats discoveryStats = result._addStage(STAGE_DISCOVERY, 1);
+        final StageStats parsingStats = result._addStage(STAGE_PARSING, _parseThreads);
+        final StageStats validationStats = result._addStage(STAGE_VALIDATION, _validationThreads);
+        final StageStats writingStats = result._addStage(STAGE_WRITING, 1);
+
+        final BlockingQueue<File> files = new ArrayBlockingQueue<>(_queueCapacity);
+        final BlockingQueue<ParsedFile> parsedFiles = new ArrayBlockingQueue<>(_queueCapacity);
+        BlockingQueue<ParsedFile> validatedFiles = new ArrayBlockingQueue<>(_queueCapacity);
+
+        _error = null;
+        ExecutorService executor = Utils.newDaemonThreadPool(1 + _parseThreads + _validationThreads, "SgfLibraryImporter");
+
+        MappedGameTree.Writer writer = null;
+        DataOutputStream out = null;
+        try {
+            executor.execute(new DiscoveryStage(directory, files, discoveryStats));
+            AtomicInteger runningParsers = new AtomicInteger(_parseThreads);
+            for (int i = 0; i < _parseThreads; i++) {
+                executor.execute(new Stage<File, ParsedFile>(files, _NO_MORE_FILES, parsedFiles, _NO_MORE_GAMES, runningParsers, parsingStats) {
+                    @Override
+                    protected ParsedFile process(File file) {
+                        try {
+                            return new ParsedFile(file, new SgfByteParser(_parseOptions).parse(_readFile(file)));
+                        }
+                        catch (Exception e) {
+                            result._failedFiles.add(file);
+                            return null;
+                        }
+                    }
+                });
+            }
+            AtomicInteger runningValidators = new AtomicInteger(_validationThreads);
+            for (int i = 0; i < _validationThreads; i++) {
+                executor.execute(new Stage<ParsedFile, ParsedFile>(parsedFiles, _NO_MORE_GAMES, validatedFiles, _NO_MORE_GAMES, runningValidators, validationStats) {
+                    @Override
+                    protected ParsedFile process(ParsedFile file) {
+                        _validate(file, result);
+                        // This stage counts the games instead of the files
+                        stats.addItems(file.games.length - 1);
+                        return file;
+                    }
+                });
+            }
+
+            MetadataStore.Builder storeBuilder = (store == null) ? null : new MetadataStore.Builder();
+            writer = new MappedGameTree.Writer(library);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadata), 65536));
+            out.writeInt(_METADATA_MAGIC);
+            out.writeInt(_METADATA_VERSION);
+            long writingStart = System.nanoTime();
+            while (true) {
+                ParsedFile file = validatedFiles.poll(100, TimeUnit.MILLISECONDS);
+                if (_error != null)
+                    throw new IOException("The import failed", _error);
+                if (file == null)
+                    continue;
+                if (file == _NO_MORE_GAMES)
+                    break;
+
+                long start = System.nanoTime();
+                for (int i = 0; i < file.games.length; i++) {
+                    GoGame game = file.games[i];
+                    if (game == null)
+                        continue;
+                    int index = writer.addGame(game.getBaseNode());
+                    _writeMetadata(out, new Metadata(index, file.file.getPath(), i, game.info, file.nodeCounts[i]));
+                    if (storeBuilder != null)
+                        storeBuilder.add(index, game.info);
+                    writingStats.addItems(1);
+                }
+                writingStats.addBusyTime(System.nanoTime() - start);
+            }
+            writingStats.end(System.nanoTime() - writingStart);
+            result._gameCount = writer.getGameCount();
+
+            out.writeInt(-1);
+            out.close();
+            out = null;
+            writer.close();
+            writer = null;
+            if (storeBuilder != null)
+                storeBuilder.save(store);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The import has been interrupted");
+        }
+        finally {
+            executor.shutdownNow();
+            Utils.closeObject(out);
+            if (writer != null) {
+                try {
+                    writer.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the metadata written by an import.
+     *
+     * @throws IOException An error occurred during reading (the file may be corrupted).
+     */
+    public static List<Metadata> loadMetadata(File metadata) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metadata), 65536));
+        try {
+            if (in.readInt() != _METADATA_MAGIC || in.readInt() != _METADATA_VERSION)
+                throw new IOException("Unknown metadata format");
+
+            ArrayList<Metadata> entries = new ArrayList<>();
+            int index;
+            while ((index = in.readInt()) >= 0) {
+                GameInfo info = new GameInfo();
+                String path = Utils.readString(in);
+                int gameInFile = in.readInt();
+                info.boardSize = in.readInt();
+                info.komi = in.readDouble();
+                info.handicap = in.readInt();
+                info.blackName = Utils.readString(in);
+                info.whiteName = Utils.readString(in);
+                info.blackRank = Utils.readString(in);
+                info.whiteRank = Utils.readString(in);
+                String result = Utils.readString(in);
+                info.result = (result == null) ? null : GoGameResult.tryParse(result);
+                info.gameDate = Utils.readString(in);
+                info.eventName = Utils.readString(in);
+                entries.add(new Metadata(index, path, gameInFile, info, in.readInt()));
+            }
+            return entries;
+        }
+        finally {
+            Utils.closeObject(in);
+        }
+    }
+
+
+    /**
+     * Removes the games which cannot be stored or replayed (the array entry is set to null), and counts the nodes.
+     */
+    private static void _validate(ParsedFile file, Result result) {
+        file.nodeCounts = new int[file.games.length];
+        for (int i = 0; i < file.games.length; i++) {
+            GoGame game = file.games[i];
+            int size = game.info.boardSize;
+            boolean valid = size >= 2 && size <= _MAX_BOARD_SIZE;
+            int nodeCount = 0;
+
+            GameTreeWalker walker = new GameTreeWalker(game.getBaseNode());
+            int event;
+            while (valid && (event = walker.next()) != GameTreeWalker.END) {
+                if (event != GameTreeWalker.ENTER)
+                    continue;
+                GameNode node = walker.getNode();
+                nodeCount++;
+                if (node.color != GoBoard.EMPTY && !(node.x == -1 && node.y == -1))
+                    valid = _isOnBoard(node.x, node.y, size);
+                if (node.setStones != null) {
+                    for (LightCoords coords : node.setStones)
+                        valid &= _isOnBoard(coords.x, coords.y, size);
+                }
+            }
+
+            if (valid) {
+                file.nodeCounts[i] = nodeCount;
+            }
+            else {
+                file.games[i] = null;
+                result._rejectedGames.incrementAndGet();
+            }
+        }
+    }
+
+    private static boolean _isOnBoard(int x, int y, int size) {
+        return x >= 0 && y >= 0 && x < size && y < size;
+    }
+
+    private static ByteBuffer _readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("The file is too large : " + file);
+            byte[] data = new byte[(int) length];
+            raf.readFully(data);
+            return ByteBuffer.wrap(data);
+        }
+        finally {
+            Utils.closeObject(raf);
+        }
+    }
+
+    private static void _writeMetadata(DataOutputStream out, Metadata metadata) throws IOException {
+        GameInfo info = metadata.info;
+        out.writeInt(metadata.index);
+        Utils.writeString(out, metadata.path);
+        out.writeInt(metadata.gameInFile);
+        out.writeInt(info.boardSize);
+        out.writeDouble(info.komi);
+        out.writeInt(info.handicap);
+        Utils.writeString(out, info.blackName);
+        Utils.writeString(out, info.whiteName);
+        Utils.writeString(out, info.blackRank);
+        Utils.writeString(out, info.whiteRank);
+        Utils.writeString(out, (info.result == null) ? null : info.result.toString());
+        Utils.writeString(out, info.gameDate);
+        Utils.writeString(out, info.eventName);
+        out.writeInt(metadata.nodeCount);
+    }
+
+
+    /**
+     * Describes a game of the library.
+     */
+    public static final class Metadata {
+        /**
+         * The index of the game in the library.
+         */
+        public final int index;
+        /**
+         * The path of the imported file, and the index of the game in this file.
+         */
+        public final String path;
+        public final int gameInFile;
+        public final GameInfo info;
+        public final int nodeCount;
+
+        Metadata(int index, String path, int gameInFile, GameInfo info, int nodeCount) {
+            this.index = index;
+            this.path = path;
+            this.gameInFile = gameInFile;
+            this.info = info;
+            this.nodeCount = nodeCount;
+        }
+    }
+
+    /**
+     * The counts and throughput of an import.
+     */
+    public static final class Result {
+        private final ArrayList<StageStats> _stages = new ArrayList<>(4);
+        private final List<File> _failedFiles = Collections.synchronizedList(new ArrayList<File>());
+        private final AtomicInteger _rejectedGames = new AtomicInteger();
+        private int _gameCount;
+
+        private StageStats _addStage(String name, int threadCount) {
+            StageStats stats = new StageStats(name, threadCount);
+            _stages.add(stats);
+            return stats;
+        }
+
+        public int getGameCount() {
+            return _gameCount;
+        }
+
+        /**
+         * Returns the number of parsed games which were not imported because of invalid coordinates or board size.
+         */
+        public int getRejectedGameCount() {
+            return _rejectedGames.get();
+        }
+
+        /**
+         * Returns the files which could not be read or parsed.
+         */
+        public List<File> getFailedFiles() {
+            return _failedFiles;
+        }
+
+        /**
+         * Returns the statistics of each stage, in pipeline order.
+         */
+        public List<StageStats> getStages() {
+            return _stages;
+        }
+    }
+
+    /**
+     * The statistics of a pipeline stage. The items are files for the discovery and parsing stages,
+     * and games for the other ones.
+     */
+    public static final class StageStats {
+        public final String name;
+        public final int threadCount;
+        private final AtomicInteger _itemCount = new AtomicInteger();
+        private final AtomicLong _busyNanos = new AtomicLong();
+        private volatile long _elapsedNanos;
+
+        StageStats(String name, int threadCount) {
+            this.name = name;
+            this.threadCount = threadCount;
+        }
+
+        public int getItemCount() {
+            return _itemCount.get();
+        }
+
+        /**
+         * Returns the time spent working by all the threads of the stage, without waiting on the queues.
+         */
+        public long getBusyNanos() {
+            return _busyNanos.get();
+        }
+
+        /**
+         * Returns the time between the start of the import and the end of the stage.
+         */
+        public long getElapsedNanos() {
+            return _elapsedNanos;
+        }
+
+        /**
+         * Returns the number of items processed per second while the stage was running.
+         */
+        public double getThroughput() {
+            return (_elapsedNanos == 0) ? 0 : _itemCount.get() * 1e9 / _elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d threads) : %d items, %.1f items/s, busy %d ms",
+                    name, threadCount, getItemCount(), getThroughput(), getBusyNanos() / 1000000);
+        }
+
+        void addItems(int count) {
+            _itemCount.addAndGet(count);
+        }
+
+        void addBusyTime(long nanos) {
+            _busyNanos.addAndGet(nanos);
+        }
+
+        void end(long elapsedNanos) {
+            _elapsedNanos = elapsedNanos;
+        }
+    }
+
+
+    private static final class ParsedFile {
+        public final File file;
+        public final GoGame[] games;
+        public int[] nodeCounts;
+
+        public ParsedFile(File file, GoGame[] games) {
+            this.file = file;
+            this.games = games;
+        }
+    }
+
+    /**
+     * A stage taking its items from a queue. The last running thread of the stage puts the end marker
+     * in the output queue.
+     */
+    private abstract class Stage<I, O> implements Runnable {
+        private final BlockingQueue<I> _input;
+        private final I _inputEnd;
+        private final BlockingQueue<O> _output;
+        private final O _outputEnd;
+        private final AtomicInteger _running;
+        protected final StageStats stats;
+        private final long _startTime = System.nanoTime();
+
+        public Stage(BlockingQueue<I> input, I inputEnd, BlockingQueue<O> output, O outputEnd, AtomicInteger running, StageStats stats) {
+            _input = input;
+            _inputEnd = inputEnd;
+            _output = output;
+            _outputEnd = outputEnd;
+            _running = running;
+            this.stats = stats;
+        }
+
+        /**
+         * Returns the item to put in the output queue (or null to drop it).
+         */
+        protected abstract O process(I item);
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    I item = _input.take();
+                    if (item == _inputEnd) {
+                        // Let the other threads of the stage see the end marker
+                        _input.put(item);
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    O result = process(item);
+                    stats.addBusyTime(System.nanoTime() - start);
+                    stats.addItems(1);
+                    if (result != null)
+                        _output.put(result);
+                }
+                if (_running.decrementAndGet() == 0) {
+                    stats.end(System.nanoTime() - _startTime);
+                    _output.put(_outputEnd);
+                }
+            }
+            catch (InterruptedException ignored) {
+            }
+            catch (Throwable e) {
+                _error = e;
+            }
+        }
+    }
+
+    private final class DiscoveryStage implements Runnable {
+        private final File _directory;
+        private final BlockingQueue<File> _output;
+        private final StageStats _stats;
+
+        public DiscoveryStage(File directory, BlockingQueue<File> output, StageStats stats) {
+            _directory = directory;
+            _output = output;
+            _stats = stats;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            try {
+                // Directories are visited with a stack, files are sorted by name in each directory
+                Stack<File> directories = new Stack<>();
+                directories.push(_directory);
+                while (!directories.empty()) {
+                    long start = System.nanoTime();
+                    File[] children = directories.pop().listFiles();
+                    if (children == null)
+                        continue;
+                    Arrays.sort(children);
+                    for (int i = children.length - 1; i >= 0; i--) {
+                        if (children[i].isDirectory())
+                            directories.push(children[i]);
+                    }
+                    _stats.addBusyTime(System.nanoTime() - start);
+
+                    for (File child : children) {
+                        if (child.isFile() && child.getName().toLowerCase().endsWith(".sgf")) {
+                            _output.put(child);
+                            _stats.addItems(1);
+                        }
+                    }
+                }
+                _stats.end(System.nanoTime() - startTime);
+                _output.put(_NO_MORE_FILES);
+            }
+            catch (InterruptedException ignored) {
+            }
+            catch (Throwable e) {
+                _error = e;
+            }
+        }
+    }
+}
@@ -19,7 +19,6 @@
 package lrstudios.games.ego.lib;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -27,10 +26,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.PushbackReader;
 import java.io.Reader;
-import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -74,9 +71,6 @@ public final class SgfParser {
     private ParseOptions _parseOptions;
     private ArrayList<GameNode> _baseNodes;
     private ArrayList<GameInfo> _gameInfos;
-    private Writer _writer;
-    private GoGame _game;
-    private IOException _exception;
     private GameInfo _gameInfo;
     private boolean _optimized;
     private boolean _infoOnly;
@@ -105,33 +99,34 @@ public final class SgfParser {
         _baseNodes = new ArrayList<>(1);
         _gameInfos = new ArrayList<>(1);
 
-        _parse_loop(null);
+        _parseTree();
         if (_infoOnly && _gameInfo != null)
             _gameInfo.originalSgf = ((CopyPushbackReader) _reader).getString();
         //System.out.println("Found " + _baseNodes.size() + " games with a total of " + _nodeCount + " SGF nodes.");
 
-        int nodes = _baseNodes.size();
+        return createGames(_gameInfos, _baseNodes, _parseOptions);
+    }
+
+    /**
+     * Creates the games from the parsed trees, and applies the parse options.
+     */
+    static GoGame[] createGames(List<GameInfo> gameInfos, List<GameNode> baseNodes, ParseOptions options) throws IOException {
+        int nodes = baseNodes.size();
         GoGame[] games = new GoGame[nodes];
         for (int i = 0; i < nodes; i++)
-            games[i] = new GoGame(_gameInfos.get(i), _baseNodes.get(i));
+            games[i] = new GoGame(gameInfos.get(i), baseNodes.get(i));
 
         // Parse as problems :
         // Try to know which problem format is used to set the move values properly
-        if (_parseOptions._parseAsProblems) {
+        if (options._parseAsProblems) {
             ArrayList<GoGame> newGames = new ArrayList<>();
             for (GoGame game : games) {
                 GameNode baseNode = game.getBaseNode();
                 // If the board is empty at the beginning, it means that the problems are stored
                 // in the variations
                 if (baseNode.setStones == null || baseNode.setStones.size() == 0) {
-                    for (GameNode nextNode : baseNode.nextNodes) {
-                        GameNode parentNode = nextNode.parentNode;
-                        nextNode.parentNode = null;
-                        game.setBaseNode(nextNode);
-                        newGames.add(GoGame.loadSgf(game.getSgf())[0]);
-                        game.setBaseNode(baseNode);
-                        nextNode.parentNode = parentNode;
-                    }
+                    for (GameNode nextNode : baseNode.nextNodes)
+                        newGames.add(new GoGame(_copyGameInfo(game.info), nextNode.copyTree()));
                 }
             }
             if (newGames.size() > 0) {
@@ -146,8 +141,29 @@ public final class SgfParser {
     }
 
 
+    /**
+     * Copies the game information which is saved in SGF files.
+     */
+    private static GameInfo _copyGameInfo(GameInfo info) {
+        GameInfo copy = new GameInfo();
+        copy.rules = (info.rules == null) ? "Japanese" : info.rules;
+        copy.whiteName = info.whiteName;
+        copy.blackName = info.blackName;
+        copy.whiteRank = info.whiteRank;
+        copy.blackRank = info.blackRank;
+        copy.boardSize = info.boardSize;
+        copy.komi = info.komi;
+        copy.handicap = info.handicap;
+        copy.result = info.result;
+        copy.firstPlayer = info.firstPlayer;
+        copy.eventName = info.eventName;
+        copy.gameDate = info.gameDate;
+        copy.round = info.round;
+        return copy;
+    }
+
     // This method could use recursive functions but android stack size is very limited, so it should be avoided
-    private void _setMoveValues(GoGame game) {
+    private static void _setMoveValues(GoGame game) {
         GameNode baseNode = game.getBaseNode();
 
         // Try to find move comments indicating good and bad variations
@@ -195,8 +211,10 @@ public final class SgfParser {
         return parse(stream);
     }
 
-    // Recursive parsing function
-    private void _parse_loop(GameNode curNode) throws IOException {
+    private void _parseTree() throws IOException {
+        // Each opened variation saves the node it starts from
+        Stack<GameNode> variations = new Stack<>();
+        GameNode curNode = null;
         int ch;
         while ((ch = _reader.read()) != -1) {
             switch (ch) {
@@ -227,15 +245,18 @@ public final class SgfParser {
                         _gameInfo.handicap = 0;
                         _gameInfos.add(_gameInfo);
                     }
-                    _parse_loop(curNode);
-                    if (curNode != null)
-                        curNode.nextNodes.trimToSize();
+                    variations.push(curNode);
                     break;
 
                 case ')':
                     if (curNode != null)
                         curNode.nextNodes.trimToSize();
-                    return;
+                    if (variations.empty())
+                        return;
+                    curNode = variations.pop();
+                    if (curNode != null)
+                        curNode.nextNodes.trimToSize();
+                    break;
             }
         }
     }
@@ -258,7 +279,14 @@ public final class SgfParser {
             }
             else if (!readingValue) {
                 if (ch == '[') {
-                    propertyType = parsePropertyType(_property.toString());
+                    if (propertyType < -1)
+                        propertyType = parsePropertyType(_property.toString());
+                    if (_parseOptions.isSkipped(propertyType)) {
+                        if (!_skipValue())
+                            break;
+                        propertyFound = true;
+                        continue;
+                    }
                     readingValue = true;
                     _value.setLength(0);
                 }
@@ -288,6 +316,21 @@ public final class SgfParser {
         return node;
     }
 
+    /**
+     * Reads the characters of a value until the closing ']', without storing them.
+     * Returns false if the end of the stream has been reached.
+     */
+    private boolean _skipValue() throws IOException {
+        int previous = 0;
+        int ch;
+        while ((ch = _reader.read()) != -1) {
+            if (ch == ']' && previous != '\\')
+                return true;
+            previous = ch;
+        }
+        return false;
+    }
+
     private void _addProperty(GameNode node, int propertyType, String value) {
         switch (propertyType) {
             case PROP_BLACK:
@@ -404,22 +447,10 @@ public final class SgfParser {
      * @throws IOException An error occurred during writing.
      */
     public void save(GoGame game, OutputStream stream) throws IOException {
-        _writer = new BufferedWriter(new PrintWriter(stream), 1024);
-        _gameInfo = game.info;
-        _game = game;
-        _exception = null;
-
-        // Saves the file from another thread to have a larger stack size for recursive function calls
-        // (Android stack size is limited to 8KB, which throws a StackOverflowError on large SGF files).
-        Thread thread = new Thread(new ThreadGroup("TROLOLO"), save_loop, "SgfParser", 256 * 1024);
-        thread.start();
-        try {
-            thread.join();
-        }
-        catch (InterruptedException ignored) {
-        }
-        if (_exception != null)
-            throw _exception;
+        SgfWriter writer = new SgfWriter(stream);
+        writer.setOptimized(_optimized);
+        writer.write(game);
+        writer.flush();
     }
 
     /**
@@ -434,167 +465,6 @@ public final class SgfParser {
         save(game, stream);
     }
 
-    private Runnable save_loop = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                _save_loop(_game.getBaseNode(), true);
-                _writer.flush();
-            }
-            catch (IOException e) {
-                _exception = e;
-            }
-        }
-
-        private void _save_loop(GameNode curNode, boolean writeParentheses) throws IOException {
-            if (!_optimized)
-                _writer.write("\n");
-            if (writeParentheses)
-                _writer.write('(');
-            _writeNode(curNode);
-
-            List<GameNode> nextNodesList = curNode.nextNodes;
-            for (GameNode nextNode : nextNodesList) {
-                _save_loop(nextNode, nextNodesList.size() > 1);
-            }
-            if (writeParentheses)
-                _writer.write(')');
-        }
-    };
-
-    private void _writeNode(GameNode node) throws IOException {
-        _writer.write(";");
-
-        // Premier coup de la partie, y ajouter les infos
-        if (node.parentNode == null) {
-            if (!_optimized) {
-                _writer.write("GM[1]FF[4]CA[UTF-8]");
-                _writeProperty("AP", _gameInfo.applicationName);
-            }
-            _writeProperty("RU", _gameInfo.rules == null ? "Japanese" : _gameInfo.rules);
-            _writeProperty("PW", _gameInfo.whiteName);
-            _writeProperty("PB", _gameInfo.blackName);
-            _writeProperty("WR", _gameInfo.whiteRank);
-            _writeProperty("BR", _gameInfo.blackRank);
-
-            _writeProperty("SZ", _gameInfo.boardSize);
-            _writeProperty("KM", _komiToSgfString(_gameInfo.komi));
-            _writeProperty("HA", _gameInfo.handicap);
-            if (_gameInfo.result != null)
-                _writeProperty("RE", _gameInfo.result.toString());
-            _writeProperty("PL", _gameInfo.firstPlayer);
-            _writeProperty("EV", _gameInfo.eventName);
-            _writeProperty("DT", _gameInfo.gameDate);
-            _writeProperty("RO", _gameInfo.round);
-        }
-
-        if (node.color != GoBoard.EMPTY) {
-            char colorChar = node.color == GoBoard.WHITE ? 'W' : 'B';
-            if (node.x == -1 && node.y == -1)
-                _writer.write(colorChar + "[]");
-            else if (node.x >= 0 && node.y >= 0)
-                _writer.write(colorChar + "[" + coordsToString(node.x, node.y) + "]");
-        }
-        if (node.setStones != null && node.setStones.size() > 0) {
-            List<LightCoords> whiteList = new ArrayList<>();
-            List<LightCoords> blackList = new ArrayList<>();
-            List<LightCoords> emptyList = new ArrayList<>();
-
-            for (LightCoords coords : node.setStones) {
-                if (coords.color == GoBoard.WHITE)
-                    whiteList.add(coords);
-                else if (coords.color == GoBoard.BLACK)
-                    blackList.add(coords);
-                else
-                    emptyList.add(coords);
-            }
-
-            if (whiteList.size() > 0) {
-                _writer.write("AW");
-                for (LightCoords coords : whiteList)
-                    _writer.write("[" + coordsToString(coords.x, coords.y) + "]");
-            }
-            if (blackList.size() > 0) {
-                _writer.write("AB");
-                for (LightCoords coords : blackList)
-                    _writer.write("[" + coordsToString(coords.x, coords.y) + "]");
-            }
-            if (emptyList.size() > 0) {
-                _writer.write("AE");
-                for (LightCoords coords : emptyList)
-                    _writer.write("[" + coordsToString(coords.x, coords.y) + "]");
-            }
-        }
-
-        // Marks
-        if (node.boardMarks != null) {
-            // TODO optimize
-            ArrayList<BoardMark> triangles = new ArrayList<>();
-            ArrayList<BoardMark> circles = new ArrayList<>();
-            ArrayList<BoardMark> squares = new ArrayList<>();
-            ArrayList<BoardMark> cross = new ArrayList<>();
-            ArrayList<BoardMark> labels = new ArrayList<>();
-            for (BoardMark mark : node.boardMarks) {
-                switch (mark.type) {
-                    case BoardMark.MARK_TRIANGLE:
-                        triangles.add(mark);
-                        break;
-                    case BoardMark.MARK_CIRCLE:
-                        circles.add(mark);
-                        break;
-                    case BoardMark.MARK_SQUARE:
-                        squares.add(mark);
-                        break;
-                    case BoardMark.MARK_CROSS:
-                        cross.add(mark);
-                        break;
-                    case BoardMark.MARK_LABEL:
-                        labels.add(mark);
-                        break;
-                }
-            }
-            if (triangles.size() > 0) {
-                _writer.write("TR");
-                for (BoardMark mark : triangles)
-                    _writer.write("[" + coordsToString(mark.x, mark.y) + "]");
-            }
-            if (circles.size() > 0) {
-                _writer.write("CR");
-                for (BoardMark mark : circles)
-                    _writer.write("[" + coordsToString(mark.x, mark.y) + "]");
-            }
-            if (squares.size() > 0) {
-                _writer.write("SQ");
-                for (BoardMark mark : squares)
-                    _writer.write("[" + coordsToString(mark.x, mark.y) + "]");
-            }
-            if (cross.size() > 0) {
-                _writer.write("MA");
-                for (BoardMark mark : squares)
-                    _writer.write("[" + coordsToString(mark.x, mark.y) + "]");
-            }
-            if (labels.size() > 0) {
-                _writer.write("LB");
-                for (BoardMark mark : labels)
-                    _writer.write("[" + coordsToString(mark.x, mark.y) + ":" + mark.getLabel() + "]");
-            }
-        }
-
-        String comment = node.getComment();
-        if (comment.length() > 0)
-            _writeProperty("C", comment.replace("]", "\\]"));
-    }
-
-    private void _writeProperty(String property, int value) throws IOException {
-        _writer.write(String.format("%s[%d]", property, value));
-    }
-
-    private void _writeProperty(String property, String value) throws IOException {
-        if (value != null && value.length() > 0)
-            _writer.write(String.format("%s[%s]", property, value));
-    }
-
-
     /**
      * Converts the specified {@link GoGame} into a SGF[4] string.
      */
@@ -605,7 +475,7 @@ public final class SgfParser {
                 saveOptimized(game, outputStream);
             else
                 save(game, outputStream);
-            String sgf = outputStream.toString();
+            String sgf = outputStream.toString("UTF-8");
             outputStream.close();
             return sgf;
         }
@@ -629,11 +499,6 @@ public final class SgfParser {
         }
     }
 
-    private String _komiToSgfString(double komi) {
-        return String.format("%d.%d", (int) (komi), Math.abs((int) Math.round(komi * 10.0) % 10));
-    }
-
-
     /**
      * Returns the SGF representation of the specified property (PROP_ADD_WHITE returns "AW", for example).
      */
@@ -692,12 +557,70 @@ public final class SgfParser {
 
 
     public static final class ParseOptions {
+        private static final byte[] _MOVE_PROPERTIES = {
+                PROP_BLACK, PROP_WHITE, PROP_ADD_BLACK, PROP_ADD_WHITE, PROP_ADD_EMPTY,
+                PROP_SIZE, PROP_KOMI, PROP_HANDICAP, PROP_RULES, PROP_PLAYER_BLACK, PROP_PLAYER_WHITE,
+                PROP_BLACK_RANK, PROP_WHITE_RANK, PROP_RESULT, PROP_PLAYER_TO_PLAY, PROP_EVENT, PROP_DATE, PROP_ROUND};
+
         private boolean _parseAsProblems;
+        private boolean _lazyVariations;
+        private boolean[] _skippedProperties;
 
         public ParseOptions parseAsProblems(boolean parse) {
             _parseAsProblems = parse;
             return this;
         }
+
+        /**
+         * Only parses the main line and the first node of the other variations : the rest of a variation
+         * is parsed when it is used (see {@link GameNode#ensureLoaded()}). This is only supported by
+         * {@link SgfByteParser}, and it is ignored when parsing problems. The parsed data must not be
+         * modified while the game is used.
+         */
+        public ParseOptions loadVariationsLazily(boolean lazy) {
+            _lazyVariations = lazy;
+            return this;
+        }
+
+        /**
+         * Only parses the specified properties (PROP_* constants) : the values of the other ones are skipped.
+         */
+        public ParseOptions includeProperties(byte... properties) {
+            _skippedProperties = new boolean[PROP_MAX_VALUE + 1];
+            Arrays.fill(_skippedProperties, true);
+            for (byte property : properties)
+                _skippedProperties[property] = false;
+            return this;
+        }
+
+        /**
+         * Skips the values of the specified properties (PROP_* constants).
+         */
+        public ParseOptions excludeProperties(byte... properties) {
+            if (_skippedProperties == null)
+                _skippedProperties = new boolean[PROP_MAX_VALUE + 1];
+            for (byte property : properties)
+                _skippedProperties[property] = true;
+            return this;
+        }
+
+        /**
+         * Only parses the moves, the setup stones and the game information : comments, marks and labels are skipped.
+         */
+        public ParseOptions movesOnly() {
+            return includeProperties(_MOVE_PROPERTIES);
+        }
+
+        /**
+         * Returns true if the values of the specified property don't have to be parsed.
+         */
+        boolean isSkipped(int propertyType) {
+            return _skippedProperties != null && propertyType >= 0 && _skippedProperties[propertyType];
+        }
+
+        boolean isLazy() {
+            return _lazyVariations && !_parseAsProblems;
+        }
     }
 
 
@@ -0,0 +1,328 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+
+/**
+ * Writes games in SGF format, encoding them directly in UTF-8 into a reusable byte buffer which is
+ * flushed in large chunks. The output is the same as {@link SgfParser#save(GoGame, OutputStream)}.
+ * Several games can be written one after another to create a collection.
+ */
+public final class SgfWriter {
+    private static final int _BUFFER_SIZE = 64 * 1024;
+
+    // SGF coordinates of the values 0 to 51
+    private static final byte[] _COORDS = new byte[52];
+
+    private static final byte[] _ROOT_PROPERTIES = "GM[1]FF[4]CA[UTF-8]".getBytes();
+
+    private final OutputStream _stream;
+    private final WritableByteChannel _channel;
+    private final byte[] _buffer = new byte[_BUFFER_SIZE];
+    private final ByteBuffer _byteBuffer = ByteBuffer.wrap(_buffer);
+    private int _position;
+    private boolean _optimized;
+
+
+    public SgfWriter(OutputStream stream) {
+        _stream = stream;
+        _channel = null;
+    }
+
+    public SgfWriter(WritableByteChannel channel) {
+        _stream = null;
+        _channel = channel;
+    }
+
+
+    /**
+     * Optimizations reduce the file size : no new line characters, and the GM, FF, CA and AP
+     * properties are not written (see {@link SgfParser#saveOptimized(GoGame, OutputStream)}).
+     */
+    public void setOptimized(boolean optimized) {
+        _optimized = optimized;
+    }
+
+    /**
+     * Writes the tree of the specified game. The data may stay in the buffer until {@link #flush()} is called.
+     *
+     * @throws IOException An error occurred during writing.
+     */
+    public void write(GoGame game) throws IOException {
+        // Variations are put between parentheses, except when a node has only one next node
+        GameTreeWalker walker = new GameTreeWalker(game.getBaseNode());
+        int event;
+        while ((event = walker.next()) != GameTreeWalker.END) {
+            boolean writeParentheses = walker.getSiblingCount() > 1 || walker.getDepth() == 0;
+            if (event == GameTreeWalker.ENTER) {
+                if (!_optimized)
+                    _put('\n');
+                if (writeParentheses)
+                    _put('(');
+                _writeNode(game.info, walker.getNode());
+            }
+            else if (writeParentheses) {
+                _put(')');
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered data to the stream or channel (which is not closed).
+     *
+     * @throws IOException An error occurred during writing.
+     */
+    public void flush() throws IOException {
+        if (_position == 0)
+            return;
+
+        if (_stream != null) {
+            _stream.write(_buffer, 0, _position);
+            _stream.flush();
+        }
+        else {
+            _byteBuffer.clear().limit(_position);
+            while (_byteBuffer.hasRemaining())
+                _channel.write(_byteBuffer);
+        }
+        _position = 0;
+    }
+
+
+    private void _writeNode(GameInfo info, GameNode node) throws IOException {
+        _put(';');
+
+        if (node.parentNode == null) {
+            if (!_optimized) {
+                _put(_ROOT_PROPERTIES);
+                _writeProperty('A', 'P', info.applicationName);
+            }
+            _writeProperty('R', 'U', info.rules == null ? "Japanese" : info.rules);
+            _writeProperty('P', 'W', info.whiteName);
+            _writeProperty('P', 'B', info.blackName);
+            _writeProperty('W', 'R', info.whiteRank);
+            _writeProperty('B', 'R', info.blackRank);
+
+            _writeIdentifier('S', 'Z');
+            _putInt(info.boardSize);
+            _put(']');
+            _writeIdentifier('K', 'M');
+            _putInt((int) info.komi);
+            _put('.');
+            _putInt(Math.abs((int) Math.round(info.komi * 10.0) % 10));
+            _put(']');
+            _writeIdentifier('H', 'A');
+            _putInt(info.handicap);
+            _put(']');
+            if (info.result != null)
+                _writeProperty('R', 'E', info.result.toString());
+            _writeProperty('P', 'L', info.firstPlayer);
+            _writeProperty('E', 'V', info.eventName);
+            _writeProperty('D', 'T', info.gameDate);
+            _writeProperty('R', 'O', info.round);
+        }
+
+        if (node.color != GoBoard.EMPTY) {
+            if (node.x == -1 && node.y == -1) {
+                _put(node.color == GoBoard.WHITE ? 'W' : 'B');
+                _put('[');
+                _put(']');
+            }
+            else if (node.x >= 0 && node.y >= 0) {
+                _put(node.color == GoBoard.WHITE ? 'W' : 'B');
+                _put('[');
+                _putCoords(node.x, node.y);
+                _put(']');
+            }
+        }
+
+        ArrayList<LightCoords> setStones = node.setStones;
+        if (setStones != null && setStones.size() > 0) {
+            _writeStones(setStones, GoBoard.WHITE, 'W');
+            _writeStones(setStones, GoBoard.BLACK, 'B');
+            _writeStones(setStones, GoBoard.EMPTY, 'E');
+        }
+
+        ArrayList<BoardMark> marks = node.boardMarks;
+        if (marks != null) {
+            _writeMarks(marks, BoardMark.MARK_TRIANGLE, 'T', 'R');
+            _writeMarks(marks, BoardMark.MARK_CIRCLE, 'C', 'R');
+            _writeMarks(marks, BoardMark.MARK_SQUARE, 'S', 'Q');
+            _writeMarks(marks, BoardMark.MARK_CROSS, 'M', 'A');
+            _writeMarks(marks, BoardMark.MARK_LABEL, 'L', 'B');
+        }
+
+        byte[] comment = node.getCommentBytes();
+        if (comment != null && comment.length > 0) {
+            _put('C');
+            _put('[');
+            for (byte ch : comment) {
+                if (ch == ']')
+                    _put('\\');
+                _put(ch);
+            }
+            _put(']');
+        }
+    }
+
+    /**
+     * Writes the setup stones of one color as a single property (AW, AB or AE).
+     */
+    private void _writeStones(ArrayList<LightCoords> stones, byte color, char identifier) throws IOException {
+        boolean found = false;
+        for (int i = 0, count = stones.size(); i < count; i++) {
+            LightCoords coords = stones.get(i);
+            if ((color == GoBoard.WHITE || color == GoBoard.BLACK) ? coords.color != color
+                    : (coords.color == GoBoard.WHITE || coords.color == GoBoard.BLACK))
+                continue;
+            if (!found) {
+                _put('A');
+                _put(identifier);
+                found = true;
+            }
+            _put('[');
+            _putCoords(coords.x, coords.y);
+            _put(']');
+        }
+    }
+
+    /**
+     * Writes all marks of one type as a single property.
+     */
+    private void _writeMarks(ArrayList<BoardMark> marks, byte type, char first, char second) throws IOException {
+        boolean found = false;
+        for (int i = 0, count = marks.size(); i < count; i++) {
+            BoardMark mark = marks.get(i);
+            if (mark.type != type)
+                continue;
+            if (!found) {
+                _put(first);
+                _put(second);
+                found = true;
+            }
+            _put('[');
+            _putCoords(mark.x, mark.y);
+            if (type == BoardMark.MARK_LABEL) {
+                _put(':');
+                _putChar(mark.getLabel());
+            }
+            _put(']');
+        }
+    }
+
+    private void _writeProperty(char first, char second, String value) throws IOException {
+        if (value == null || value.length() == 0)
+            return;
+        _writeIdentifier(first, second);
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char ch = value.charAt(i);
+            if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                _putCodePoint(Character.toCodePoint(ch, value.charAt(++i)));
+            }
+            else {
+                _putChar(ch);
+            }
+        }
+        _put(']');
+    }
+
+    /**
+     * Writes a property identifier followed by '['.
+     */
+    private void _writeIdentifier(char first, char second) throws IOException {
+        _put(first);
+        _put(second);
+        _put('[');
+    }
+
+    private void _putCoords(int x, int y) throws IOException {
+        _put((x >= 0 && x < _COORDS.length) ? _COORDS[x] : (byte) ('a' + x));
+        _put((y >= 0 && y < _COORDS.length) ? _COORDS[y] : (byte) ('a' + y));
+    }
+
+    private void _putInt(int value) throws IOException {
+        if (value < 0) {
+            _put('-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            _put((byte) ('0' + (value / divisor) % 10));
+    }
+
+    /**
+     * Encodes a character in UTF-8 (unpaired surrogates are written as '?').
+     */
+    private void _putChar(char ch) throws IOException {
+        if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE)
+            _put('?');
+        else
+            _putCodePoint(ch);
+    }
+
+    private void _putCodePoint(int codePoint) throws IOException {
+        if (codePoint < 0x80) {
+            _put((byte) codePoint);
+        }
+        else if (codePoint < 0x800) {
+            _put((byte) (0xC0 | (codePoint >> 6)));
+            _put((byte) (0x80 | (codePoint & 0x3F)));
+        }
+        else if (codePoint < 0x10000) {
+            _put((byte) (0xE0 | (codePoint >> 12)));
+            _put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            _put((byte) (0x80 | (codePoint & 0x3F)));
+        }
+        else {
+            _put((byte) (0xF0 | (codePoint >> 18)));
+            _put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+            _put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            _put((byte) (0x80 | (codePoint & 0x3F)));
+        }
+    }
+
+    private void _put(char ch) throws IOException {
+        _put((byte) ch);
+    }
+
+    private void _put(byte value) throws IOException {
+        if (_position == _buffer.length)
+            flush();
+        _buffer[_position++] = value;
+    }
+
+    private void _put(byte[] values) throws IOException {
+        for (byte value : values)
+            _put(value);
+    }
+
+
+    static {
+        for (int i = 0; i < _COORDS.length; i++)
+            _COORDS[i] = (byte) ('a' + i);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of Elygo-lib.
+ * Copyright (C) 2012   Emmanuel Mathis [emmanuel *at* lr-studios.net]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lrstudios.games.ego.lib;
+
+
+/**
+ * A read-only view of a board after one of the {@link BoardSymmetry symmetries}. The stones are not copied :
+ * each access is mapped to the original board, so the view reflects the later changes of this board.
+ */
+public final class TransformedBoard {
+    private final GoBoard _board;
+    private final BoardSymmetry _symmetry;
+    private final int _inverse;
+    private final int _size;
+
+
+    public TransformedBoard(GoBoard board, BoardSymmetry symmetry) {
+        _board = board;
+        _symmetry = symmetry;
+        _inverse = BoardSymmetry.inverse(symmetry.getBoardSymmetry());
+        _size = board.getSize();
+    }
+
+
+    public GoBoard getBoard() {
+        return _board;
+    }
+
+    public BoardSymmetry getSymmetry() {
+        return _symmetry;
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Gets the color of an intersection of the transformed board.
+     */
+    public byte getColor(int x, int y) {
+        int point = BoardSymmetry.transform(_inverse, x, y, _size);
+        return _symmetry.getColor(_board.getColor(point % _size, point / _size));
+    }
+
+    public boolean isEmpty(int x, int y) {
+        byte color = getColor(x, y);
+        return color != GoBoard.WHITE && color != GoBoard.BLACK;
+    }
+
+    /**
+     * Returns a new board containing the transformed stones and marks.
+     */
+    public GoBoard toBoard() {
+        GoBoard board = new GoBoard(_size);
+        for (int y = 0; y < _size; y++) {
+            for (int x = 0; x < _size; x++)
+                board.set(x, y, getColor(x, y));
+        }
+        for (BoardMark mark : _board.getMarks())
+            board.setMark(_symmetry.getMark(mark, _size));
+        return board;
+    }
+}
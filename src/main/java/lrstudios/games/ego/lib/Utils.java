@@ -23,6 +23,8 @@ import android.util.Log;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -30,11 +32,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -185,6 +191,80 @@ public final class Utils {
         Log.v("Utils_stopwatch", "stopwatch_get() : " + stopwatch_get() + " ms");
     }
 
+    /**
+     * Sorts the first count keys in ascending order, and moves the values with their keys. This is a
+     * stable radix sort (16 bits per pass), which allocates two temporary arrays of count elements.
+     */
+    public static void sortByKey(long[] keys, long[] values, int count) {
+        long[] sourceKeys = keys;
+        long[] sourceValues = values;
+        long[] targetKeys = new long[count];
+        long[] targetValues = new long[count];
+        int[] positions = new int[65537];
+        for (int shift = 0; shift < 64; shift += 16) {
+            Arrays.fill(positions, 0);
+            // The sign bit is flipped on the last pass to get the signed order
+            int flip = (shift == 48) ? 0x8000 : 0;
+            for (int i = 0; i < count; i++)
+                positions[(((int) (sourceKeys[i] >>> shift) & 0xFFFF) ^ flip) + 1]++;
+            for (int i = 1; i < positions.length; i++)
+                positions[i] += positions[i - 1];
+            for (int i = 0; i < count; i++) {
+                int position = positions[((int) (sourceKeys[i] >>> shift) & 0xFFFF) ^ flip]++;
+                targetKeys[position] = sourceKeys[i];
+                targetValues[position] = sourceValues[i];
+            }
+
+            long[] temp = sourceKeys;
+            sourceKeys = targetKeys;
+            targetKeys = temp;
+            temp = sourceValues;
+            sourceValues = targetValues;
+            targetValues = temp;
+        }
+        // After an even number of passes, the sorted data is back in the original arrays
+    }
+
+    /**
+     * Creates a pool of count daemon threads (they don't prevent the application from exiting)
+     * with the specified name.
+     */
+    static ExecutorService newDaemonThreadPool(int count, final String name) {
+        return Executors.newFixedThreadPool(count, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its UTF-8 bytes (a null string has a length of -1).
+     */
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
     public static String komiToString(double komi, char decimalSeparator) {
         return String.format("%d%c%d", (int) (komi), decimalSeparator, ((int) Math.round(komi * 10.0) % 10));
     }
@@ -31,7 +31,7 @@ import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.text.DecimalFormat;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -40,6 +40,7 @@ import java.util.Properties;
 import lrstudios.games.ego.lib.BoardView;
 import lrstudios.games.ego.lib.Coords;
 import lrstudios.games.ego.lib.GameInfo;
+import lrstudios.games.ego.lib.GameJournal;
 import lrstudios.games.ego.lib.GameNode;
 import lrstudios.games.ego.lib.GoBoard;
 import lrstudios.games.ego.lib.GoGame;
@@ -49,7 +50,6 @@ import lrstudios.games.ego.lib.GtpThread;
 import lrstudios.games.ego.lib.IntentGameInfo;
 import lrstudios.games.ego.lib.R;
 import lrstudios.games.ego.lib.ScoreView;
-import lrstudios.games.ego.lib.Utils;
 
 public class GtpBoardActivity extends BaseBoardActivity implements BoardView.BoardListener, View.OnClickListener {
     private static final String TAG = "GtpBoardActivity";
@@ -120,17 +120,19 @@ public class GtpBoardActivity extends BaseBoardActivity implements BoardView.Boa
         GoGame restoredGame = null;
         int boardSize = gameInfo.boardSize;
         if (extras.getBoolean(INTENT_PLAY_RESTORE, false)) {
-            FileInputStream stream = null;
             try {
-                stream = openFileInput("gtp_save.sgf");
-                restoredGame = GoGame.loadSgf(stream)[0];
+                File snapshotFile = getFileStreamPath(GtpThread.SAVE_SNAPSHOT_FILENAME);
+                File journalFile = getFileStreamPath(GtpThread.SAVE_JOURNAL_FILENAME);
+                if (!snapshotFile.exists()) {
+                    snapshotFile = getFileStreamPath(GtpThread.SAVE_LEGACY_FILENAME);
+                    journalFile = null;
+                }
+                restoredGame = GameJournal.restore(snapshotFile, journalFile);
                 boardSize = restoredGame.info.boardSize;
             } catch (Exception e) {
                 e.printStackTrace();
                 restoredGame = null;
                 showToast(R.string.err_cannot_restore_game);
-            } finally {
-                Utils.closeObject(stream);
             }
         }
 
@@ -145,7 +147,6 @@ public class GtpBoardActivity extends BaseBoardActivity implements BoardView.Boa
         }
         _engine.setLevel(gameInfo.botLevel);
         _gtpThread = new GtpThread(_engine, _handler, getApplicationContext());
-        _gtpThread.start();
 
         if (restoredGame != null) {
             _engine.newGame(restoredGame);
@@ -27,6 +27,7 @@ import android.widget.Button;
 import android.widget.Spinner;
 
 import lrstudios.games.ego.lib.GoBoard;
+import lrstudios.games.ego.lib.GtpThread;
 import lrstudios.games.ego.lib.IntentGameInfo;
 import lrstudios.games.ego.lib.R;
 import lrstudios.games.ego.lib.UpdatePrefsTask;
@@ -145,6 +146,7 @@ public abstract class NewGameActivity extends BetterFragmentActivity implements
 
     private void _updateButtons() {
         // Disable "Resume" button if there is no game saved
-        _btn_continue.setEnabled(getFileStreamPath("gtp_save.sgf").exists());
+        _btn_continue.setEnabled(getFileStreamPath(GtpThread.SAVE_SNAPSHOT_FILENAME).exists()
+                || getFileStreamPath(GtpThread.SAVE_LEGACY_FILENAME).exists());
     }
 }